@@ -0,0 +1,367 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/* Django admin session of a component authenticating with "authmode" session,
+ * shared by every KeycloakSession instead of logging in per request.
+ *
+ * The login is done in the background when the provider starts or is saved.
+ * The expiry of the session cookie, from the Expires or Max-Age attribute of
+ * its Set-Cookie, is tracked and the session renewed by logging in again a
+ * fifth of its lifetime but at least a minute before it ends. A session idle
+ * for "sessionkeepalive" seconds is kept alive with a cheap authenticated
+ * request, a session the server dropped meanwhile is renewed right away. So
+ * requests only log in themselves when no session could be obtained in the
+ * background.
+ */
+public class SCIMAdminSession {
+	private static final Logger logger = Logger.getLogger(SCIMAdminSession.class);
+
+	/* Settings the credentials are made of */
+	private static final List<String> CREDENTIAL_SETTINGS = Arrays.asList("scimurl", "loginusername", "loginpassword");
+
+	private static final String CSRF_COOKIE = "csrftoken";
+	private static final String SESSION_COOKIE = "sessionid";
+	/* Seconds */
+	private static final int DEFAULT_KEEPALIVE = 300;
+	private static final long MIN_REFRESH_MARGIN = 60;
+	private static final long MIN_RETRY_DELAY = 10;
+	private static final long MAX_RETRY_DELAY = 300;
+	/* A session rejected younger than this was not lapsed, the request is just not allowed */
+	private static final long MIN_REJECTED_AGE = 60;
+
+	/* Credentials of one login, sent with every request */
+	public static class Cookies {
+		final String csrfValue;
+		final String cookie;
+		final String sessionId;
+		/* Milliseconds */
+		final long loggedInAt;
+
+		Cookies(Map<String, String> values, long loggedInAt) {
+			this.csrfValue = values.get(CSRF_COOKIE);
+			StringBuilder cookie = new StringBuilder();
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				if (cookie.length() > 0) {
+					cookie.append("; ");
+				}
+				cookie.append(value.getKey()).append('=').append(value.getValue());
+			}
+			this.cookie = cookie.toString();
+			this.sessionId = values.containsKey(SESSION_COOKIE) ?
+					String.format("%s=%s", SESSION_COOKIE, values.get(SESSION_COOKIE)) : null;
+			this.loggedInAt = loggedInAt;
+		}
+
+		public SimpleHttp apply(SimpleHttp request) {
+			return request.header("X-CSRFToken", csrfValue)
+					.header("Cookie", cookie)
+					.header("SessionId", sessionId);
+		}
+	}
+
+	private final KeycloakSessionFactory sessionFactory;
+	private final ComponentModel model;
+	private final ScheduledExecutorService executor;
+	private final List<String> credentials;
+	private volatile Cookies cookies;
+	/* Milliseconds, Long.MAX_VALUE when the cookie does not say */
+	private volatile long expiresAt;
+	private volatile long lastUsed;
+	private long retryDelay = MIN_RETRY_DELAY;
+	private ScheduledFuture<?> refresh;
+	/* Only started sessions are kept alive in the background */
+	private boolean started = false;
+
+	public SCIMAdminSession(KeycloakSessionFactory sessionFactory, ComponentModel model, ScheduledExecutorService executor) {
+		this.sessionFactory = sessionFactory;
+		this.model = model;
+		this.executor = executor;
+		this.credentials = credentials(model);
+	}
+
+	private static List<String> credentials(ComponentModel model) {
+		List<String> values = new ArrayList<String>();
+		for (String name : CREDENTIAL_SETTINGS) {
+			values.add(model.getConfig().getFirst(name));
+		}
+		return values;
+	}
+
+	/* False once the credentials of the component were changed */
+	public boolean hasCredentialsOf(ComponentModel model) {
+		return credentials.equals(credentials(model));
+	}
+
+	/* Log in in the background, before any request needs the session */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		schedule(cookies == null ? 0 : nextCheck(System.currentTimeMillis()));
+	}
+
+	public synchronized void close() {
+		started = false;
+		if (refresh != null) {
+			refresh.cancel(false);
+			refresh = null;
+		}
+	}
+
+	/* The current session, logging in on the calling thread only when none is valid */
+	public Cookies get(KeycloakSession session) {
+		Cookies current = cookies;
+		long now = System.currentTimeMillis();
+		if (current == null || now >= expiresAt) {
+			synchronized (this) {
+				if (cookies == null || System.currentTimeMillis() >= expiresAt) {
+					logger.infov("No valid SCIM session for {0}, logging in", model.getName());
+					login(session);
+				}
+				current = cookies;
+			}
+		}
+		lastUsed = now;
+		return current;
+	}
+
+	/* The server rejected the session, true if the next get() logs in again */
+	public synchronized boolean invalidate(Cookies rejected) {
+		if (rejected == null || rejected != cookies ||
+				System.currentTimeMillis() - rejected.loggedInAt < MIN_REJECTED_AGE * 1000) {
+			return false;
+		}
+		cookies = null;
+		return true;
+	}
+
+	/* Two-step login: GET the login page for the initial csrftoken, then POST the credentials */
+	public synchronized Cookies login(KeycloakSession session) {
+		String server = model.getConfig().getFirst("scimurl");
+		String url = String.format("https://%s%s", server, "/admin/login/");
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		long now = System.currentTimeMillis();
+
+		/* Execute GET to get initial csrftoken */
+		try {
+			SimpleHttp.Response response = SimpleHttp.doGet(url, session).asResponse();
+			try {
+				parseSetCookie(response, values);
+			} finally {
+				response.close();
+			}
+		} catch (Exception e) {
+			logger.errorv("Error: {0}", e.getMessage());
+			throw new RuntimeException(e);
+		}
+
+		/* Perform login POST, here we retrieve the Response sessionid and csrftoken cookie */
+		long maxAge;
+		try {
+			SimpleHttp.Response response = new Cookies(values, now).apply(SimpleHttp.doPost(url, session))
+					.header("referer", url)
+					.param("username", model.getConfig().getFirst("loginusername"))
+					.param("password", model.getConfig().getFirst("loginpassword")).asResponse();
+			try {
+				maxAge = parseSetCookie(response, values);
+			} finally {
+				response.close();
+			}
+		} catch (Exception e) {
+			logger.error("Error: " + e.getMessage());
+			throw new RuntimeException(e);
+		}
+
+		return loggedIn(values, now, maxAge);
+	}
+
+	/* Keeps the cookies of a login started at now and schedules what comes next */
+	synchronized Cookies loggedIn(Map<String, String> values, long now, long maxAge) {
+		cookies = new Cookies(values, now);
+		lastUsed = now;
+		if (!values.containsKey(SESSION_COOKIE)) {
+			/* Requests fail as before, the background retries the login */
+			logger.warnv("SCIM login of {0} returned no session", model.getName());
+			expiresAt = Long.MAX_VALUE;
+			schedule(retryDelay());
+			return cookies;
+		}
+
+		expiresAt = maxAge < 0 ? Long.MAX_VALUE : now + maxAge * 1000;
+		retryDelay = MIN_RETRY_DELAY;
+		schedule(nextCheck(now));
+		return cookies;
+	}
+
+	/* Store the cookies set by the response, returns the Max-Age of the session cookie or -1 */
+	private static long parseSetCookie(SimpleHttp.Response response, Map<String, String> values) throws Exception {
+		long maxAge = -1;
+		List<String> setCookieHeaders = response.getHeader("Set-Cookie");
+		if (setCookieHeaders == null) {
+			return maxAge;
+		}
+
+		for (String h : setCookieHeaders) {
+			List<HttpCookie> parsed;
+			try {
+				/* Converts Expires to a Max-Age as well */
+				parsed = HttpCookie.parse(h);
+			} catch (IllegalArgumentException e) {
+				logger.debugv("Ignoring unparsable Set-Cookie {0}", h);
+				continue;
+			}
+			for (HttpCookie c : parsed) {
+				if (!CSRF_COOKIE.equals(c.getName()) && !SESSION_COOKIE.equals(c.getName())) {
+					continue;
+				}
+				if (c.getMaxAge() == 0) {
+					values.remove(c.getName());
+					continue;
+				}
+				values.put(c.getName(), c.getValue());
+				if (SESSION_COOKIE.equals(c.getName())) {
+					maxAge = c.getMaxAge();
+				}
+			}
+		}
+		return maxAge;
+	}
+
+	private long keepAlive() {
+		return keepAlive(model);
+	}
+
+	/* Seconds, unlike the other settings 0 is valid and disables the keep-alive */
+	static long keepAlive(ComponentModel model) {
+		String value = model.getConfig().getFirst("sessionkeepalive");
+		if (value == null || value.trim().isEmpty()) {
+			return DEFAULT_KEEPALIVE;
+		}
+		try {
+			long parsed = Long.parseLong(value.trim());
+			return parsed >= 0 ? parsed : DEFAULT_KEEPALIVE;
+		} catch (NumberFormatException e) {
+			logger.warnv("Invalid value {0} for sessionkeepalive, using {1}", value, DEFAULT_KEEPALIVE);
+			return DEFAULT_KEEPALIVE;
+		}
+	}
+
+	/* Milliseconds until the session has to be renewed or kept alive */
+	long nextCheck(long now) {
+		Cookies current = cookies;
+		long renewal = current == null ? Long.MAX_VALUE : nextRenewal(current);
+		long next = renewal == Long.MAX_VALUE ? Long.MAX_VALUE : renewal - now;
+		if (keepAlive() > 0) {
+			next = Math.min(next, lastUsed + keepAlive() * 1000 - now);
+		}
+		/* Without either, the session lasts as long as the server keeps it */
+		return next == Long.MAX_VALUE ? -1 : Math.max(1000, next);
+	}
+
+	private long retryDelay() {
+		long delay = retryDelay * 1000;
+		retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+		return delay;
+	}
+
+	private synchronized void schedule(long delay) {
+		if (!started) {
+			return;
+		}
+		if (refresh != null) {
+			refresh.cancel(false);
+			refresh = null;
+		}
+		if (delay >= 0) {
+			refresh = executor.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void refresh() {
+		try (KeycloakSession session = sessionFactory.create()) {
+			long now = System.currentTimeMillis();
+			Cookies current = cookies;
+			if (current == null || now >= nextRenewal(current)) {
+				login(session);
+				logger.debugv("Renewed SCIM session of {0}", model.getName());
+			} else if (keepAlive() > 0 && now - lastUsed >= keepAlive() * 1000) {
+				if (ping(session, current)) {
+					logger.debugv("Kept SCIM session of {0} alive", model.getName());
+					schedule(nextCheck(now));
+				} else {
+					logger.infov("SCIM session of {0} lapsed, logging in again", model.getName());
+					login(session);
+				}
+			} else {
+				/* Used meanwhile */
+				schedule(nextCheck(now));
+			}
+		} catch (RuntimeException e) {
+			long delay = retryDelay();
+			logger.warnv("Failed to renew SCIM session of {0}, retrying in {1}s: {2}", model.getName(),
+					delay / 1000, e.getMessage());
+			schedule(delay);
+		}
+	}
+
+	/* Time the session is renewed at, ahead of its expiry */
+	long nextRenewal(Cookies current) {
+		if (expiresAt == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		long lifetime = expiresAt - current.loggedInAt;
+		return expiresAt - Math.max(MIN_REFRESH_MARGIN * 1000, lifetime / 5);
+	}
+
+	/* Cheap authenticated request resetting the idle timer of the server, false if the session is gone */
+	private boolean ping(KeycloakSession session, Cookies current) {
+		String url = String.format("https://%s/scim/v2/Users?count=0", model.getConfig().getFirst("scimurl"));
+		try {
+			SimpleHttp.Response response = current.apply(SimpleHttp.doGet(url, session)).asResponse();
+			try {
+				if (response.getStatus() != 200) {
+					return false;
+				}
+				lastUsed = System.currentTimeMillis();
+				/* Servers saving the session on every request extend its expiry */
+				Map<String, String> values = new LinkedHashMap<String, String>();
+				long maxAge = parseSetCookie(response, values);
+				if (maxAge > 0 && values.containsKey(SESSION_COOKIE)) {
+					synchronized (this) {
+						if (cookies == current) {
+							Map<String, String> renewed = new LinkedHashMap<String, String>();
+							if (current.csrfValue != null) {
+								renewed.put(CSRF_COOKIE, current.csrfValue);
+							}
+							renewed.putAll(values);
+							cookies = new Cookies(renewed, lastUsed);
+							expiresAt = lastUsed + maxAge * 1000;
+						}
+					}
+				}
+				return true;
+			} finally {
+				response.close();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Prefetches SCIM users into the SCIMUserCache of transient components, so
+ * the first logins after a restart or a configuration change are not all
+ * cache misses hitting the SCIM server at once.
+ *
+ * "cachewarmup" selects the most recently modified users (requires sort
+ * support) or the directory in its natural order, up to "cachewarmupsize"
+ * users. Warm-ups run one page at a time on a single low priority thread, so
+ * they never compete with logins for more than one backend request.
+ *
+ * When a SCIMUserSnapshot is available it is loaded instead and only the
+ * users changed since it was written are fetched. The cached users are then
+ * resolved again every three quarters of "cachelifespan", so the directory
+ * loaded from the snapshot stays cached instead of expiring all at once.
+ * Users SCIM no longer has are dropped.
+ *
+ * After a configuration change the users cached until then, the ones
+ * actually in use, are resolved again first with batched userName lookups
+ * of a page of users each.
+ */
+public class SCIMCacheWarmer {
+	private static final Logger logger = Logger.getLogger(SCIMCacheWarmer.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int DEFAULT_WARMUP_SIZE = 10000;
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final Map<String, Future<?>> tasks = new ConcurrentHashMap<String, Future<?>>();
+	/* Periodic refreshes of the users loaded from a snapshot */
+	private final Map<String, Future<?>> refreshes = new ConcurrentHashMap<String, Future<?>>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "scim-cache-warmup");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	public SCIMCacheWarmer(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+	}
+
+	/* (Re)start the warm-up of the component, if configured */
+	public void warmUp(ComponentModel model) {
+		warmUp(model, Collections.<String>emptyList());
+	}
+
+	/* Same, reloading first the users cached before the cache was dropped */
+	public void warmUp(ComponentModel model, List<String> cached) {
+		cancel(model.getId());
+
+		String mode = model.getConfig().getFirst("cachewarmup");
+		boolean warmup = mode != null && !"off".equals(mode);
+		if (!new UserStorageProviderModel(model).isEnabled() || !Boolean.valueOf(model.getConfig().getFirst("transientusers")) ||
+				(!warmup && !SCIMUserSnapshot.isEnabled(model) && cached.isEmpty())) {
+			return;
+		}
+		tasks.put(model.getId(), executor.submit(() -> {
+			if (loadSnapshot(model)) {
+				scheduleRefresh(model);
+				return;
+			}
+			reload(model, cached);
+			if (warmup) {
+				run(model, "recent".equals(mode));
+			}
+		}));
+	}
+
+	/* Resolve the users again a page at a time, one OR filter search each */
+	private void reload(ComponentModel model, List<String> usernames) {
+		if (usernames.isEmpty()) {
+			return;
+		}
+		int pageSize = SCIMUserSync.getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		SCIMUserCache cache = factory.getUserCache(model);
+		int loaded = 0;
+
+		try {
+			for (int from = 0; from < usernames.size() && !Thread.currentThread().isInterrupted(); from += pageSize) {
+				List<String> page = usernames.subList(from, Math.min(from + pageSize, usernames.size()));
+				try (KeycloakSession session = sessionFactory.create()) {
+					for (SCIMUser.Resource resource : new Scim(session, model, factory).getUsersByUsername(page).values()) {
+						cache.put(resource);
+						loaded++;
+					}
+				}
+			}
+			logger.infov("Reloaded {0} of {1} cached SCIM users for {2}", loaded, usernames.size(), model.getName());
+		} catch (RuntimeException e) {
+			/* Lookups fill the cache anyway */
+			logger.warnv("Reload of cached users of {0} stopped after {1} users: {2}", model.getName(), loaded,
+					e.getMessage());
+		}
+	}
+
+	/* Drops the users SCIM no longer has, unlike reload() a failed lookup stops the refresh */
+	private void refresh(ComponentModel model) {
+		int pageSize = SCIMUserSync.getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		SCIMUserCache cache = factory.getUserCache(model);
+		List<String> usernames = cache.usernames();
+		int removed = 0;
+
+		try {
+			for (int from = 0; from < usernames.size() && !Thread.currentThread().isInterrupted(); from += pageSize) {
+				List<String> page = usernames.subList(from, Math.min(from + pageSize, usernames.size()));
+				Map<String, SCIMUser.Resource> found;
+				try (KeycloakSession session = sessionFactory.create()) {
+					found = new Scim(session, model, factory).findUsersByUsername(page);
+				}
+				for (String username : page) {
+					SCIMUser.Resource resource = found.get(username);
+					if (resource != null) {
+						cache.put(resource);
+						continue;
+					}
+					cache.remove(username);
+					if (factory.getUserIndex(model) != null) {
+						factory.getUserIndex(model).remove(username);
+					}
+					if (factory.getSearchIndex(model) != null) {
+						factory.getSearchIndex(model).remove(username);
+					}
+					removed++;
+				}
+			}
+			logger.debugv("Refreshed {0} cached SCIM users of {1}, {2} no longer exist", usernames.size(),
+					model.getName(), removed);
+		} catch (RuntimeException e) {
+			/* Users not refreshed expire and are looked up again */
+			logger.warnv("Refresh of cached users of {0} failed: {1}", model.getName(), e.getMessage());
+		}
+	}
+
+	private synchronized void scheduleRefresh(ComponentModel model) {
+		/* Cancelled meanwhile */
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		long period = Math.max(1, SCIMUserStorageProviderFactory.cacheLifespan(model) * 3L / 4);
+		refreshes.put(model.getId(), executor.scheduleWithFixedDelay(() -> refresh(model), period, period,
+				TimeUnit.SECONDS));
+	}
+
+	public synchronized void cancel(String componentId) {
+		Future<?> task = tasks.remove(componentId);
+		if (task != null) {
+			task.cancel(true);
+		}
+		Future<?> refresh = refreshes.remove(componentId);
+		if (refresh != null) {
+			refresh.cancel(true);
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		tasks.clear();
+		refreshes.clear();
+	}
+
+	/* A snapshot replaces the warm-up, only the users changed since it was taken are fetched */
+	private boolean loadSnapshot(ComponentModel model) {
+		if (!SCIMUserSnapshot.isEnabled(model)) {
+			return false;
+		}
+		Date timestamp = SCIMUserSnapshot.load(model, factory.getUserCache(model), factory.getUserIndex(model),
+				factory.getSearchIndex(model));
+		if (timestamp == null) {
+			return false;
+		}
+
+		try {
+			SynchronizationResult result = factory.syncSince(timestamp, sessionFactory, model.getParentId(),
+					new UserStorageProviderModel(model));
+			logger.infov("Revalidated SCIM snapshot of {0}: {1}", model.getName(), result.getStatus());
+		} catch (RuntimeException e) {
+			/* The refresh resolves the users again anyway */
+			logger.warnv("Failed to revalidate SCIM snapshot of {0}: {1}", model.getName(), e.getMessage());
+		}
+		return true;
+	}
+
+	private void run(ComponentModel model, boolean recent) {
+		int pageSize = SCIMUserSync.getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		int limit = SCIMUserSync.getIntConfig(model, "cachewarmupsize", DEFAULT_WARMUP_SIZE);
+		SCIMUserCache cache = factory.getUserCache(model);
+		int loaded = 0;
+
+		try {
+			SCIMServiceProviderConfig config;
+			try (KeycloakSession session = sessionFactory.create()) {
+				config = new Scim(session, model, factory).getServiceProviderConfig();
+			}
+			if (recent && !config.isSortSupported()) {
+				logger.warnv("SCIM server does not support sorting, warming up {0} in directory order", model.getName());
+				recent = false;
+			}
+			boolean cursor = !recent && config.isCursorSupported();
+
+			int startIndex = 1;
+			String nextCursor = "";
+			while (loaded < limit && !Thread.currentThread().isInterrupted()) {
+				int count = Math.min(pageSize, limit - loaded);
+				SCIMUser page;
+				try (KeycloakSession session = sessionFactory.create()) {
+					Scim scim = new Scim(session, model, factory);
+					if (recent) {
+						page = scim.getUsersRecentlyModifiedPage(startIndex, count);
+					} else if (cursor) {
+						page = scim.getUsersPage(nextCursor, count);
+					} else {
+						page = scim.getUsersPage(startIndex, count);
+					}
+				}
+
+				List<SCIMUser.Resource> resources = page.getResources() == null ?
+						Collections.<SCIMUser.Resource>emptyList() : page.getResources();
+				for (SCIMUser.Resource resource : resources) {
+					cache.put(resource);
+				}
+				loaded += resources.size();
+				startIndex += resources.size();
+				nextCursor = page.getNextCursor();
+
+				if (resources.isEmpty() || (cursor ? nextCursor == null || nextCursor.isEmpty() :
+						page.getTotalResults() == null || startIndex > page.getTotalResults())) {
+					break;
+				}
+			}
+			logger.infov("Warmed up {0} SCIM users for {1}", loaded, model.getName());
+		} catch (RuntimeException e) {
+			/* Lookups fill the cache anyway */
+			logger.warnv("Cache warm-up of {0} stopped after {1} users: {2}", model.getName(), loaded, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package keycloak.scim_user_spi;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/* Sent to the other cluster nodes once a component was created, saved or
+ * removed, Keycloak only calls onCreate, onUpdate and preRemove on the node
+ * handling the admin request. Receivers reload the component from the
+ * database and refresh their schedules, caches and credentials.
+ */
+public class SCIMComponentEvent implements ClusterEvent {
+	private static final long serialVersionUID = 1L;
+
+	public static final String EVENT_KEY = "scim-component-changed";
+
+	private final String realmId;
+	private final String componentId;
+	private final boolean removed;
+
+	public SCIMComponentEvent(String realmId, String componentId, boolean removed) {
+		this.realmId = realmId;
+		this.componentId = componentId;
+		this.removed = removed;
+	}
+
+	public String getRealmId() {
+		return realmId;
+	}
+
+	public String getComponentId() {
+		return componentId;
+	}
+
+	public boolean isRemoved() {
+		return removed;
+	}
+}
@@ -0,0 +1,82 @@
+package keycloak.scim_user_spi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* SCIMUserCache holding the parsed resources on the heap, entries expire
+ * "cachelifespan" seconds after they were stored.
+ */
+public class SCIMHeapUserCache implements SCIMUserCache {
+
+	private static class Entry {
+		final SCIMUser.Resource user;
+		final long expires;
+
+		Entry(SCIMUser.Resource user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final long lifespan;
+
+	public SCIMHeapUserCache(int lifespanSeconds) {
+		this.lifespan = lifespanSeconds * 1000L;
+	}
+
+	private static String key(String username) {
+		return username.toLowerCase();
+	}
+
+	@Override
+	public SCIMUser.Resource get(String username) {
+		String key = key(username);
+		Entry entry = entries.get(key);
+
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry.user;
+	}
+
+	@Override
+	public void put(SCIMUser.Resource user) {
+		entries.put(key(user.getUserName()), new Entry(user, System.currentTimeMillis() + lifespan));
+	}
+
+	@Override
+	public void remove(String username) {
+		entries.remove(key(username));
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public List<String> usernames() {
+		long now = System.currentTimeMillis();
+		List<String> usernames = new ArrayList<String>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (entry.getValue().expires >= now) {
+				usernames.add(entry.getKey());
+			}
+		}
+		return usernames;
+	}
+
+	@Override
+	public void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,29 @@
+package keycloak.scim_user_spi;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Fixed set of locks guarding the lookup-then-import of a SCIM user.
+ *
+ * The lock is selected by hashing realm id and username, so concurrent first
+ * logins of the same user are serialized while unrelated users only contend
+ * when they happen to share a stripe.
+ */
+public class SCIMImportLocks {
+	private static final int STRIPES = 64;
+
+	private final Lock[] locks = new Lock[STRIPES];
+
+	public SCIMImportLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	public Lock get(String realmId, String username) {
+		int hash = (realmId + "/" + username.toLowerCase()).hashCode();
+		/* Spread the higher bits before masking */
+		hash ^= (hash >>> 16);
+		return locks[hash & (STRIPES - 1)];
+	}
+}
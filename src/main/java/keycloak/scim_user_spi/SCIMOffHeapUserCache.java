@@ -0,0 +1,304 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* SCIMUserCache keeping users as SCIMUserRecords in a direct buffer, so a
+ * large directory costs about a hundred bytes per user outside of the heap
+ * instead of a graph of objects the GC has to walk.
+ *
+ * Entries are appended to the buffer as [key length][key][expires][record
+ * length][record]. An open-addressing index (linear probing over two flat
+ * arrays) maps the lower case userName to the entry offset. Replaced, removed
+ * and expired entries are reclaimed by compacting the buffer in place once it
+ * is full. Users that still do not fit are not cached.
+ */
+public class SCIMOffHeapUserCache implements SCIMUserCache {
+	private static final Logger logger = Logger.getLogger(SCIMOffHeapUserCache.class);
+
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
+	private static final int INITIAL_SLOTS = 1024;
+
+	private final long lifespan;
+	private final ByteBuffer arena;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/* Entry offsets and key hashes, a power of two in size */
+	private int[] offsets;
+	private int[] hashes;
+	/* Slots not EMPTY, deleted ones included */
+	private int used;
+	private int count;
+	/* End of the last entry */
+	private int tail;
+
+	public SCIMOffHeapUserCache(int lifespanSeconds, int capacityBytes) {
+		this.lifespan = lifespanSeconds * 1000L;
+		this.arena = ByteBuffer.allocateDirect(capacityBytes);
+		resetIndex(INITIAL_SLOTS);
+	}
+
+	/* True if the cache was created with these settings and can be reused for them */
+	public boolean hasSettings(int lifespanSeconds, int capacityBytes) {
+		return lifespan == lifespanSeconds * 1000L && arena.capacity() == capacityBytes;
+	}
+
+	private void resetIndex(int slots) {
+		offsets = new int[slots];
+		hashes = new int[slots];
+		Arrays.fill(offsets, EMPTY);
+		used = 0;
+		count = 0;
+	}
+
+	private static byte[] key(String username) {
+		return username.toLowerCase().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int hash(byte[] key) {
+		int h = Arrays.hashCode(key);
+		return h ^ (h >>> 16);
+	}
+
+	/* Returns the slot holding the key, or -1 */
+	private int find(byte[] key, int hash) {
+		int mask = offsets.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int offset = offsets[i];
+			if (offset == EMPTY) {
+				return -1;
+			}
+			if (offset != DELETED && hashes[i] == hash && keyEquals(offset, key)) {
+				return i;
+			}
+		}
+	}
+
+	private boolean keyEquals(int offset, byte[] key) {
+		if (arena.getInt(offset) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (arena.get(offset + 4 + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long expires(int offset) {
+		return arena.getLong(offset + 4 + arena.getInt(offset));
+	}
+
+	private int entrySize(int offset) {
+		int keyLength = arena.getInt(offset);
+		return 4 + keyLength + 8 + 4 + arena.getInt(offset + 4 + keyLength + 8);
+	}
+
+	@Override
+	public SCIMUser.Resource get(String username) {
+		byte[] key = key(username);
+		int hash = hash(key);
+
+		lock.readLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot < 0) {
+				return null;
+			}
+			int offset = offsets[slot];
+			if (expires(offset) < System.currentTimeMillis()) {
+				/* Reclaimed by the next compaction */
+				return null;
+			}
+			ByteBuffer buffer = arena.duplicate();
+			buffer.position(offset + 4 + key.length + 8 + 4);
+			return SCIMUserRecord.decode(buffer);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(SCIMUser.Resource user) {
+		byte[] key = key(user.getUserName());
+		int hash = hash(key);
+		byte[] record = SCIMUserRecord.encode(user);
+		int size = 4 + key.length + 8 + 4 + record.length;
+
+		lock.writeLock().lock();
+		try {
+			if (arena.capacity() - tail < size) {
+				compact();
+			}
+			int slot = find(key, hash);
+			if (arena.capacity() - tail < size) {
+				logger.warnv("Off-heap SCIM user cache full, not caching {0}", user.getUserName());
+				if (slot >= 0) {
+					/* Never serve the previous version */
+					offsets[slot] = DELETED;
+					count--;
+				}
+				return;
+			}
+
+			int offset = tail;
+			ByteBuffer buffer = arena.duplicate();
+			buffer.position(offset);
+			buffer.putInt(key.length).put(key).putLong(System.currentTimeMillis() + lifespan)
+				.putInt(record.length).put(record);
+			tail = buffer.position();
+
+			if (slot >= 0) {
+				offsets[slot] = offset;
+				return;
+			}
+			if ((used + 1) * 2 > offsets.length) {
+				rehash(offsets.length * 2);
+			}
+			insert(offset, hash);
+			count++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* The key must not be indexed yet */
+	private void insert(int offset, int hash) {
+		int mask = offsets.length - 1;
+		int i = hash & mask;
+		while (offsets[i] != EMPTY && offsets[i] != DELETED) {
+			i = (i + 1) & mask;
+		}
+		if (offsets[i] == EMPTY) {
+			used++;
+		}
+		offsets[i] = offset;
+		hashes[i] = hash;
+	}
+
+	private void rehash(int slots) {
+		int[] oldOffsets = offsets;
+		int[] oldHashes = hashes;
+		int live = count;
+
+		resetIndex(slots);
+		for (int i = 0; i < oldOffsets.length; i++) {
+			if (oldOffsets[i] >= 0) {
+				insert(oldOffsets[i], oldHashes[i]);
+			}
+		}
+		count = live;
+	}
+
+	/* Slide the live entries to the start of the buffer, in offset order, dropping expired ones */
+	private void compact() {
+		long now = System.currentTimeMillis();
+		long[] live = new long[count];
+		int n = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] >= 0 && expires(offsets[i]) >= now) {
+				live[n++] = ((long) offsets[i] << 32) | (hashes[i] & 0xffffffffL);
+			}
+		}
+		Arrays.sort(live, 0, n);
+
+		int slots = offsets.length;
+		while (slots > INITIAL_SLOTS && n * 4 < slots) {
+			slots /= 2;
+		}
+		resetIndex(slots);
+
+		int write = 0;
+		byte[] entry = new byte[0];
+		for (int i = 0; i < n; i++) {
+			int offset = (int) (live[i] >>> 32);
+			int size = entrySize(offset);
+			if (offset != write) {
+				if (entry.length < size) {
+					entry = new byte[size];
+				}
+				ByteBuffer source = arena.duplicate();
+				source.position(offset);
+				source.get(entry, 0, size);
+				ByteBuffer target = arena.duplicate();
+				target.position(write);
+				target.put(entry, 0, size);
+			}
+			insert(write, (int) live[i]);
+			write += size;
+		}
+		count = n;
+		tail = write;
+	}
+
+	@Override
+	public void remove(String username) {
+		byte[] key = key(username);
+		int hash = hash(key);
+
+		lock.writeLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				offsets[slot] = DELETED;
+				count--;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> usernames() {
+		long now = System.currentTimeMillis();
+		List<String> usernames = new ArrayList<String>();
+
+		lock.readLock().lock();
+		try {
+			for (int offset : offsets) {
+				if (offset >= 0 && expires(offset) >= now) {
+					byte[] key = new byte[arena.getInt(offset)];
+					ByteBuffer buffer = arena.duplicate();
+					buffer.position(offset + 4);
+					buffer.get(key);
+					usernames.add(new String(key, StandardCharsets.UTF_8));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return usernames;
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			resetIndex(INITIAL_SLOTS);
+			tail = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
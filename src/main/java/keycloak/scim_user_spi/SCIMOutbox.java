@@ -0,0 +1,339 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.keycloak.component.ComponentModel;
+
+/* Write-behind journal of the SCIM writes of a component ("writebehind").
+ *
+ * addUser, removeUser and attribute changes are appended to
+ * scim-outbox-<id>.log in the server data directory and forced to disk before
+ * the admin or account request returns, SCIMOutboxDispatcher sends them later.
+ * Each line is either an entry, "<seq> <op> <username> <attribute> <count>
+ * <values...>" with URL-encoded fields, or "DONE <seq...>" once entries are
+ * dispatched. A torn last line left by a crash is ignored on load.
+ *
+ * Entries of a user are dispatched in order, users independently, so a user
+ * whose writes keep failing does not hold back the others. The journal is
+ * local to the node, each node dispatches its own writes.
+ */
+public class SCIMOutbox {
+	private static final Logger logger = Logger.getLogger(SCIMOutbox.class);
+
+	private static final String DONE = "DONE";
+	/* Rewrite the journal with the pending entries only once this many are done */
+	private static final int COMPACT_THRESHOLD = 10000;
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 300000;
+
+	public enum Operation {
+		CREATE,
+		UPDATE,
+		DELETE
+	}
+
+	public static class Entry {
+		final long seq;
+		final Operation operation;
+		final String username;
+		final String attribute;
+		final List<String> values;
+
+		Entry(long seq, Operation operation, String username, String attribute, List<String> values) {
+			this.seq = seq;
+			this.operation = operation;
+			this.username = username;
+			this.attribute = attribute;
+			this.values = values;
+		}
+	}
+
+	private static class Retry {
+		int attempts;
+		long notBefore;
+	}
+
+	private final Path file;
+	private volatile ComponentModel model;
+	private FileChannel channel;
+	private long seq = 0;
+	private int done = 0;
+	/* Pending entries per username, users in the order of their oldest entry */
+	private final Map<String, Deque<Entry>> pending = new LinkedHashMap<String, Deque<Entry>>();
+	private final Map<String, Retry> retries = new LinkedHashMap<String, Retry>();
+
+	private SCIMOutbox(Path file, ComponentModel model) {
+		this.file = file;
+		this.model = model;
+	}
+
+	private static Path path(ComponentModel model) {
+		return SCIMSyncCheckpoint.dataDir().resolve(String.format("scim-outbox-%s.log", model.getId()));
+	}
+
+	public static boolean isEnabled(ComponentModel model) {
+		return Boolean.valueOf(model.getConfig().getFirst("writebehind"));
+	}
+
+	/* True if the component left a journal behind, its entries still have to be sent */
+	public static boolean exists(ComponentModel model) {
+		return Files.exists(path(model));
+	}
+
+	/* Opens the journal of the component and replays the entries not dispatched yet */
+	public static SCIMOutbox open(ComponentModel model) throws IOException {
+		SCIMOutbox outbox = new SCIMOutbox(path(model), model);
+		outbox.load();
+		return outbox;
+	}
+
+	public static void delete(ComponentModel model) {
+		try {
+			Files.deleteIfExists(path(model));
+		} catch (IOException e) {
+			logger.warnv("Failed to delete SCIM outbox {0}: {1}", path(model), e.getMessage());
+		}
+	}
+
+	public ComponentModel getModel() {
+		return model;
+	}
+
+	/* The provider was saved, the server URL or credentials may have changed */
+	public void setModel(ComponentModel model) {
+		this.model = model;
+	}
+
+	private synchronized void load() throws IOException {
+		if (Files.exists(file)) {
+			Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try {
+						parse(line, entries);
+					} catch (RuntimeException e) {
+						logger.warnv("Ignoring unreadable SCIM outbox entry in {0}: {1}", file, line);
+					}
+				}
+			}
+			for (Entry entry : entries.values()) {
+				queue(entry);
+				seq = Math.max(seq, entry.seq);
+			}
+			if (!entries.isEmpty()) {
+				logger.infov("Replaying {0} SCIM writes from {1}", entries.size(), file);
+			}
+		}
+		compact();
+	}
+
+	private static void parse(String line, Map<Long, Entry> entries) {
+		String[] fields = line.split(" ", -1);
+		if (DONE.equals(fields[0])) {
+			for (int i = 1; i < fields.length; i++) {
+				entries.remove(Long.parseLong(fields[i]));
+			}
+			return;
+		}
+
+		int count = Integer.parseInt(fields[4]);
+		List<String> values = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(decode(fields[5 + i]));
+		}
+		long seq = Long.parseLong(fields[0]);
+		entries.put(seq, new Entry(seq, Operation.valueOf(fields[1]), decode(fields[2]), decode(fields[3]), values));
+	}
+
+	private static String format(Entry entry) {
+		StringBuilder line = new StringBuilder();
+		line.append(entry.seq).append(' ').append(entry.operation.name()).append(' ')
+			.append(encode(entry.username)).append(' ').append(encode(entry.attribute)).append(' ')
+			.append(entry.values.size());
+		for (String value : entry.values) {
+			line.append(' ').append(encode(value));
+		}
+		return line.append('\n').toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* Rewrite the journal with the pending entries only */
+	private void compact() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for (Deque<Entry> entries : pending.values()) {
+				for (Entry entry : entries) {
+					writer.write(format(entry));
+				}
+			}
+		}
+		try (FileChannel sync = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			sync.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		done = 0;
+	}
+
+	private void write(String line) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	private void queue(Entry entry) {
+		pending.computeIfAbsent(entry.username, u -> new ArrayDeque<Entry>()).addLast(entry);
+	}
+
+	/* Durably record a write, it is acknowledged once this returns */
+	public synchronized void append(Operation operation, String username, String attribute, List<String> values) {
+		Entry entry = new Entry(seq + 1, operation, username, attribute,
+				values == null ? Collections.<String>emptyList() : new ArrayList<String>(values));
+		try {
+			write(format(entry));
+		} catch (IOException e) {
+			logger.errorv("Failed to journal SCIM {0} of {1}: {2}", operation, username, e.getMessage());
+			throw new RuntimeException(e);
+		}
+		seq = entry.seq;
+		queue(entry);
+	}
+
+	public synchronized boolean hasPending(String username) {
+		return pending.containsKey(username);
+	}
+
+	public synchronized boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	public synchronized int size() {
+		return pending.values().stream().mapToInt(Deque::size).sum();
+	}
+
+	/* Usernames with pending entries whose backoff has elapsed */
+	public synchronized List<String> due(long now) {
+		List<String> usernames = new ArrayList<String>();
+		for (String username : pending.keySet()) {
+			Retry retry = retries.get(username);
+			if (retry == null || retry.notBefore <= now) {
+				usernames.add(username);
+			}
+		}
+		return usernames;
+	}
+
+	/* Earliest time a backed off user is due again, or -1 when nothing is pending */
+	public synchronized long nextDue() {
+		long next = -1;
+		for (String username : pending.keySet()) {
+			Retry retry = retries.get(username);
+			long due = retry == null ? 0 : retry.notBefore;
+			next = next == -1 ? due : Math.min(next, due);
+		}
+		return next;
+	}
+
+	/* A copy of the pending entries of the user, oldest first */
+	public synchronized List<Entry> entries(String username) {
+		Deque<Entry> entries = pending.get(username);
+		return entries == null ? Collections.<Entry>emptyList() : new ArrayList<Entry>(entries);
+	}
+
+	/* The entries were dispatched, or dropped as permanently failing */
+	public synchronized void done(String username, List<Entry> entries) {
+		Deque<Entry> queue = pending.get(username);
+		if (queue == null || entries.isEmpty()) {
+			return;
+		}
+
+		Set<Long> seqs = new HashSet<Long>();
+		StringBuilder line = new StringBuilder(DONE);
+		for (Entry entry : entries) {
+			seqs.add(entry.seq);
+			line.append(' ').append(entry.seq);
+		}
+		queue.removeIf(entry -> seqs.contains(entry.seq));
+		if (queue.isEmpty()) {
+			pending.remove(username);
+		}
+		retries.remove(username);
+		done += entries.size();
+
+		try {
+			if (pending.isEmpty() || done >= COMPACT_THRESHOLD) {
+				compact();
+			} else {
+				write(line.append('\n').toString());
+			}
+		} catch (IOException e) {
+			/* The entries are sent again after a restart, SCIM writes are idempotent enough for that */
+			logger.warnv("Failed to record dispatched SCIM writes in {0}: {1}", file, e.getMessage());
+		}
+	}
+
+	/* Back off the user exponentially, returns the number of attempts so far */
+	public synchronized int failed(String username, long now) {
+		Retry retry = retries.computeIfAbsent(username, u -> new Retry());
+		retry.attempts++;
+		long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(retry.attempts - 1, 20));
+		retry.notBefore = now + backoff;
+		return retry.attempts;
+	}
+
+	public synchronized void close() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			logger.warnv("Failed to close SCIM outbox {0}: {1}", file, e.getMessage());
+		}
+	}
+}
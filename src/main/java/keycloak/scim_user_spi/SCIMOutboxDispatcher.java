@@ -0,0 +1,262 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Sends the writes journaled by SCIMOutbox to the SCIM server.
+ *
+ * A single background thread drains the outboxes. Pending entries of a user
+ * are folded into as few requests as possible: attribute changes following a
+ * create are sent with the POST, consecutive attribute changes with one PUT,
+ * and a user created and deleted before either was sent costs nothing.
+ * Network errors, 5xx, 408 and 429 responses back the user off exponentially,
+ * other errors are permanent and the entries are dropped with an error, so a
+ * malformed entry cannot hold back the writes of its user forever.
+ *
+ * Journals are per node. A user added with write-behind carries the
+ * scimCreatePending attribute in the database until its creation was sent, so
+ * other nodes keep it instead of deleting it in validate().
+ */
+public class SCIMOutboxDispatcher {
+	private static final Logger logger = Logger.getLogger(SCIMOutboxDispatcher.class);
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final Map<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+	/* Components being drained, their scheduled future cannot pick up new work anymore */
+	private final Set<String> running = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "scim-outbox-dispatcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/* Outcome of one request */
+	enum Result {
+		SENT,
+		RETRY,
+		DROP
+	}
+
+	public SCIMOutboxDispatcher(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+	}
+
+	/* Drain the outbox as soon as possible */
+	public void wakeUp(SCIMOutbox outbox) {
+		schedule(outbox, 0);
+	}
+
+	private synchronized void schedule(SCIMOutbox outbox, long delay) {
+		String id = outbox.getModel().getId();
+		ScheduledFuture<?> future = scheduled.get(id);
+		if (future != null && !future.isDone() && !running.contains(id)) {
+			if (future.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+				return;
+			}
+			future.cancel(false);
+		}
+		scheduled.put(id, executor.schedule(() -> drain(outbox), delay, TimeUnit.MILLISECONDS));
+	}
+
+	public void cancel(String componentId) {
+		ScheduledFuture<?> future = scheduled.remove(componentId);
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		scheduled.clear();
+	}
+
+	private void drain(SCIMOutbox outbox) {
+		String id = outbox.getModel().getId();
+		if (factory.getOutboxes().get(id) != outbox) {
+			/* Removed or replaced meanwhile */
+			return;
+		}
+
+		running.add(id);
+		try {
+			try {
+				drainDue(outbox);
+			} catch (RuntimeException e) {
+				logger.errorv("Dispatching SCIM writes of {0} failed: {1}", outbox.getModel().getName(), e.getMessage());
+			}
+
+			long next = outbox.nextDue();
+			if (next >= 0) {
+				schedule(outbox, Math.max(0, next - System.currentTimeMillis()));
+			}
+		} finally {
+			running.remove(id);
+		}
+	}
+
+	/* Send the writes of every user whose backoff has elapsed */
+	void drainDue(SCIMOutbox outbox) {
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, outbox.getModel(), factory);
+			for (String username : outbox.due(System.currentTimeMillis())) {
+				dispatch(scim, outbox, username);
+			}
+		}
+	}
+
+	void dispatch(Scim scim, SCIMOutbox outbox, String username) {
+		List<SCIMOutbox.Entry> entries = outbox.entries(username);
+
+		while (!entries.isEmpty()) {
+			List<SCIMOutbox.Entry> batch = new ArrayList<SCIMOutbox.Entry>();
+			Result result;
+			try {
+				result = send(scim, username, entries, batch);
+			} catch (RuntimeException e) {
+				result = classify(e);
+				logger.warnv("Sending SCIM writes of {0} failed: {1}", username, e.toString());
+				if (batch.isEmpty()) {
+					batch.add(entries.get(0));
+				}
+			}
+
+			if (result == Result.RETRY) {
+				int attempts = outbox.failed(username, System.currentTimeMillis());
+				logger.warnv("SCIM writes of {0} deferred, attempt {1}", username, attempts);
+				return;
+			}
+			if (result == Result.DROP) {
+				logger.errorv("Dropping {0} SCIM writes of {1} rejected by the server", batch.size(), username);
+			}
+			if (batch.get(0).operation == SCIMOutbox.Operation.CREATE) {
+				/* Sent or given up, every node validates the user against SCIM again */
+				createDone(outbox, username);
+			}
+			outbox.done(username, batch);
+			entries = entries.subList(batch.size(), entries.size());
+		}
+	}
+
+	/* Send the head entries of the user, the entries covered are added to batch */
+	Result send(Scim scim, String username, List<SCIMOutbox.Entry> entries, List<SCIMOutbox.Entry> batch) {
+		SCIMOutbox.Entry head = entries.get(0);
+		batch.add(head);
+
+		Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+		if (head.operation != SCIMOutbox.Operation.DELETE) {
+			if (head.operation == SCIMOutbox.Operation.UPDATE) {
+				attributes.put(head.attribute, head.values);
+			}
+			for (SCIMOutbox.Entry entry : entries.subList(1, entries.size())) {
+				if (entry.operation != SCIMOutbox.Operation.UPDATE) {
+					break;
+				}
+				attributes.put(entry.attribute, entry.values);
+				batch.add(entry);
+			}
+		}
+
+		switch (head.operation) {
+		case CREATE:
+			if (entries.size() > batch.size() && entries.get(batch.size()).operation == SCIMOutbox.Operation.DELETE) {
+				/* Created and deleted before being sent */
+				batch.add(entries.get(batch.size()));
+				return Result.SENT;
+			}
+			return status(scim.createUser(username, attributes), HttpStatus.SC_CREATED);
+		case UPDATE:
+			if (!found(scim.getUserByUsername(username, Scim.Projection.ID))) {
+				logger.warnv("SCIM user {0} not found, dropping its attribute changes", username);
+				return Result.DROP;
+			}
+			return status(scim.updateUser(username, attributes), HttpStatus.SC_OK, HttpStatus.SC_NO_CONTENT);
+		case DELETE:
+			if (!found(scim.getUserByUsername(username, Scim.Projection.ID))) {
+				/* Already gone */
+				return Result.SENT;
+			}
+			return status(scim.deleteUser(username), HttpStatus.SC_NO_CONTENT);
+		default:
+			return Result.DROP;
+		}
+	}
+
+	/* Clear the marker keeping the imported user while its creation was pending */
+	void createDone(SCIMOutbox outbox, String username) {
+		ComponentModel model = outbox.getModel();
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				RealmModel realm = session.realms().getRealm(model.getParentId());
+				UserModel local = realm == null ? null :
+					UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+				if (local != null) {
+					local.removeAttribute(SCIMUserStorageProvider.CREATE_PENDING_ATTR);
+				}
+			});
+		} catch (RuntimeException e) {
+			logger.warnv("Failed to clear the pending creation of {0}: {1}", username, e.getMessage());
+		}
+	}
+
+	/* Scim wraps request failures, anything else comes from the entries and fails again on retry */
+	static Result classify(RuntimeException e) {
+		Throwable cause = e.getCause();
+		return cause != null && !(cause instanceof RuntimeException) ? Result.RETRY : Result.DROP;
+	}
+
+	private static Result status(SimpleHttp.Response response, int... expected) {
+		if (response == null) {
+			return Result.RETRY;
+		}
+
+		try {
+			int status = response.getStatus();
+			for (int ok : expected) {
+				if (status == ok) {
+					return Result.SENT;
+				}
+			}
+			logger.warnv("Unexpected SCIM status code {0}", status);
+			if (status >= 500 || status == HttpStatus.SC_REQUEST_TIMEOUT || status == 429) {
+				return Result.RETRY;
+			}
+			return Result.DROP;
+		} catch (Exception e) {
+			return Result.RETRY;
+		} finally {
+			try {
+				response.close();
+			} catch (Exception e) {
+				logger.debugv("Error closing response: {0}", e.getMessage());
+			}
+		}
+	}
+
+	private static boolean found(SCIMUser scimuser) {
+		return scimuser.getTotalResults() != null && scimuser.getTotalResults() > 0;
+	}
+}
@@ -0,0 +1,62 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Single-flight deduplication of identical SCIM read requests.
+ *
+ * The first caller for a given key performs the request, any concurrent
+ * caller for the same key waits on the in-flight future and receives the
+ * same result (or the same exception). The key is removed as soon as the
+ * request completes, so nothing is cached beyond the lifetime of the call.
+ *
+ * Results are shared between threads and must be treated as read-only.
+ */
+public class SCIMRequestCoalescer {
+	private static final Logger logger = Logger.getLogger(SCIMRequestCoalescer.class);
+
+	private final ConcurrentMap<String, CompletableFuture<SCIMUser>> inflight = new ConcurrentHashMap<>();
+
+	public static String key(String componentId, String operation, String filter) {
+		return String.format("%s|%s|%s", componentId, operation, filter);
+	}
+
+	public SCIMUser execute(String key, Supplier<SCIMUser> request) {
+		CompletableFuture<SCIMUser> future = new CompletableFuture<>();
+		CompletableFuture<SCIMUser> existing = inflight.putIfAbsent(key, future);
+
+		if (existing != null) {
+			logger.debugv("Joining in-flight SCIM request {0}", key);
+			return await(existing);
+		}
+
+		try {
+			SCIMUser result = request.get();
+			future.complete(result);
+			return result;
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inflight.remove(key, future);
+		}
+	}
+
+	private SCIMUser await(CompletableFuture<SCIMUser> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
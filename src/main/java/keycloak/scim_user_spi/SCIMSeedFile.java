@@ -0,0 +1,257 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Exported SCIM users read from a local file ("seedfile") to bootstrap the
+ * first full sync without paging through the whole directory.
+ *
+ * Files ending in .ndjson or .jsonl hold one User resource per line, other
+ * files a ListResponse with the users in "Resources". The file is memory
+ * mapped a window at a time and parsed as a stream, one resource at a time,
+ * so its size does not matter.
+ *
+ * Once imported, the path, size and modification time of the file are
+ * recorded in the scim-seed-<id> realm attribute, shared by the cluster
+ * nodes, and later full syncs go to the server again whichever node runs
+ * them. Replacing the file seeds again.
+ */
+public class SCIMSeedFile implements Closeable {
+	private static final Logger logger = Logger.getLogger(SCIMSeedFile.class);
+
+	private static final String PATH = "path";
+	private static final String SIZE = "size";
+	private static final String MODIFIED = "modified";
+	/* Mapped at a time, a mapping is indexed by int */
+	private static final long WINDOW = 256L * 1024 * 1024;
+
+	/* Reads a file through consecutive read-only mappings */
+	private static class MappedInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long size;
+		private long position = 0;
+		private MappedByteBuffer buffer;
+
+		MappedInputStream(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+
+		private boolean fill() throws IOException {
+			if (buffer != null && buffer.hasRemaining()) {
+				return true;
+			}
+			if (position >= size) {
+				return false;
+			}
+			long length = Math.min(WINDOW, size - position);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			position += length;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+
+	private final FileChannel channel;
+	private final JsonParser parser;
+	private final boolean lines;
+	private boolean started = false;
+	private boolean done = false;
+	private int read = 0;
+	private Instant lastModified;
+
+	private SCIMSeedFile(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		this.lines = name.endsWith(".ndjson") || name.endsWith(".jsonl");
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.parser = JsonSerialization.mapper.getFactory().createParser(new MappedInputStream(channel));
+	}
+
+	/* The configured file when it was not imported yet, otherwise null */
+	public static Path pending(RealmModel realm, ComponentModel model) {
+		String configured = model.getConfig().getFirst("seedfile");
+		if (configured == null || configured.trim().isEmpty()) {
+			return null;
+		}
+
+		Path file = Paths.get(configured.trim());
+		if (!Files.isReadable(file)) {
+			logger.warnv("SCIM seed file {0} not readable, syncing from the server", file);
+			return null;
+		}
+
+		String marker = realm.getAttribute(marker(model));
+		if (marker != null) {
+			Properties props = new Properties();
+			try {
+				props.load(new StringReader(marker));
+				if (file.toString().equals(props.getProperty(PATH)) &&
+						String.valueOf(Files.size(file)).equals(props.getProperty(SIZE)) &&
+						String.valueOf(Files.getLastModifiedTime(file).toMillis()).equals(props.getProperty(MODIFIED))) {
+					return null;
+				}
+			} catch (IOException e) {
+				logger.warnv("Ignoring unreadable seed marker of {0}: {1}", model.getName(), e.getMessage());
+			}
+		}
+		return file;
+	}
+
+	/* Identifies the file in a SCIMSyncCheckpoint, a replaced file is a new source */
+	public static String source(Path file) {
+		try {
+			return String.format("seed:%s:%d:%d", file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+		} catch (IOException e) {
+			/* Opening it fails as well */
+			return String.format("seed:%s", file);
+		}
+	}
+
+	private static String marker(ComponentModel model) {
+		return String.format("scim-seed-%s", model.getId());
+	}
+
+	/* The file was imported completely, the next full syncs use the server */
+	public static void imported(RealmModel realm, ComponentModel model, Path file) {
+		try {
+			Properties props = new Properties();
+			props.setProperty(PATH, file.toString());
+			props.setProperty(SIZE, String.valueOf(Files.size(file)));
+			props.setProperty(MODIFIED, String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+
+			StringWriter out = new StringWriter();
+			props.store(out, null);
+			realm.setAttribute(marker(model), out.toString());
+		} catch (IOException e) {
+			/* Seeding again only costs time, imports are idempotent */
+			logger.warnv("Failed to save seed marker of {0}: {1}", model.getName(), e.getMessage());
+		}
+	}
+
+	public static void delete(RealmModel realm, ComponentModel model) {
+		realm.removeAttribute(marker(model));
+	}
+
+	public static SCIMSeedFile open(Path file) throws IOException {
+		return new SCIMSeedFile(file);
+	}
+
+	/* Number of users read so far */
+	public int getRead() {
+		return read;
+	}
+
+	/* Latest meta.lastModified of the users read, null if none had one */
+	public Date getLastModified() {
+		return lastModified == null ? null : Date.from(lastModified);
+	}
+
+	/* The next users of the file, at most count, empty at the end */
+	public List<SCIMUser.Resource> next(int count) throws IOException {
+		List<SCIMUser.Resource> resources = new ArrayList<SCIMUser.Resource>();
+
+		if (!started) {
+			started = true;
+			done = lines ? false : !seekResources();
+		}
+		while (!done && resources.size() < count) {
+			JsonToken token = parser.nextToken();
+			if (token == null || token == JsonToken.END_ARRAY) {
+				done = true;
+				break;
+			}
+			if (token != JsonToken.START_OBJECT) {
+				throw new IOException(String.format("Unexpected %s at %s", token, parser.currentLocation()));
+			}
+			SCIMUser.Resource resource = JsonSerialization.mapper.readValue(parser, SCIMUser.Resource.class);
+			resources.add(resource);
+			read++;
+			track(resource);
+		}
+		return resources;
+	}
+
+	/* Moves the parser into the Resources array of the ListResponse, false if it has none */
+	private boolean seekResources() throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new IOException("SCIM seed file is not a ListResponse");
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken value = parser.nextToken();
+			if ("Resources".equals(field) && value == JsonToken.START_ARRAY) {
+				return true;
+			}
+			parser.skipChildren();
+		}
+		return false;
+	}
+
+	private void track(SCIMUser.Resource resource) {
+		if (resource.getMeta() == null || resource.getMeta().getLastModified() == null) {
+			return;
+		}
+		try {
+			Instant modified = OffsetDateTime.parse(resource.getMeta().getLastModified()).toInstant();
+			if (lastModified == null || modified.isAfter(lastModified)) {
+				lastModified = modified;
+			}
+		} catch (DateTimeParseException e) {
+			logger.debugv("Ignoring meta.lastModified {0} of {1}", resource.getMeta().getLastModified(),
+					resource.getUserName());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			parser.close();
+		} finally {
+			channel.close();
+		}
+	}
+}
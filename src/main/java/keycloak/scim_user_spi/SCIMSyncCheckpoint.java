@@ -0,0 +1,158 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.keycloak.component.ComponentModel;
+
+/* Progress of a full sync, persisted to a small file in the server data
+ * directory after each committed batch so an interrupted sync resumes where
+ * it stopped instead of re-importing everything.
+ *
+ * Batches commit out of order, so the stored startIndex is the watermark
+ * below which every user has been committed. With cursor pagination pages
+ * are imported in order and the cursor of the next page is stored instead.
+ *
+ * The source the users are read from, the server or a seed file, is stored
+ * along so the position in one is never resumed in another.
+ */
+public class SCIMSyncCheckpoint {
+	private static final Logger logger = Logger.getLogger(SCIMSyncCheckpoint.class);
+
+	private static final String GENERATION = "generation";
+	private static final String START_INDEX = "startIndex";
+	private static final String CURSOR = "cursor";
+	private static final String SOURCE = "source";
+
+	/* Source of the full syncs paging through the server */
+	public static final String SERVER = "server";
+
+	private final Path file;
+	private final String generation;
+	private final String source;
+	private int startIndex;
+	/* Cursor of the next page to import when the server paginates with cursors */
+	private String cursor;
+	/* Committed ranges above the watermark, start -> end (exclusive) */
+	private final TreeMap<Integer, Integer> committed = new TreeMap<Integer, Integer>();
+
+	private SCIMSyncCheckpoint(Path file, String generation, String source, int startIndex) {
+		this.file = file;
+		this.generation = generation;
+		this.source = source;
+		this.startIndex = startIndex;
+	}
+
+	static Path dataDir() {
+		String dir = System.getProperty("jboss.server.data.dir");
+		if (dir == null) {
+			dir = System.getProperty("java.io.tmpdir");
+		}
+		return Paths.get(dir);
+	}
+
+	private static Path path(ComponentModel model) {
+		return dataDir().resolve(String.format("scim-sync-%s.properties", model.getId()));
+	}
+
+	/* Returns the stored checkpoint of the component for the source, or a new one starting at index 1 */
+	public static SCIMSyncCheckpoint load(ComponentModel model, String source) {
+		Path file = path(model);
+
+		if (Files.exists(file)) {
+			Properties props = new Properties();
+			try (InputStream in = Files.newInputStream(file)) {
+				props.load(in);
+				if (!source.equals(props.getProperty(SOURCE, SERVER))) {
+					logger.infov("Sync checkpoint {0} is for {1}, starting {2} over", file,
+							props.getProperty(SOURCE, SERVER), source);
+					return new SCIMSyncCheckpoint(file, UUID.randomUUID().toString(), source, 1);
+				}
+				SCIMSyncCheckpoint checkpoint = new SCIMSyncCheckpoint(file, props.getProperty(GENERATION), source,
+						Integer.parseInt(props.getProperty(START_INDEX)));
+				checkpoint.cursor = props.getProperty(CURSOR);
+				logger.infov("Resuming sync generation {0} from {1}", checkpoint.generation,
+						checkpoint.cursor != null ? checkpoint.cursor : checkpoint.startIndex);
+				return checkpoint;
+			} catch (IOException | RuntimeException e) {
+				logger.warnv("Ignoring unreadable sync checkpoint {0}: {1}", file, e.getMessage());
+			}
+		}
+
+		return new SCIMSyncCheckpoint(file, UUID.randomUUID().toString(), source, 1);
+	}
+
+	public String getGeneration() {
+		return generation;
+	}
+
+	public int getStartIndex() {
+		return startIndex;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	/* Record every page before the given cursor as committed */
+	public void cursorCommitted(String next) {
+		cursor = next;
+		save();
+	}
+
+	/* Record users [start, end) as committed and persist the watermark if it moved */
+	public void committed(int start, int end) {
+		if (end <= startIndex) {
+			return;
+		}
+		committed.put(start, end);
+
+		int previous = startIndex;
+		while (committed.containsKey(startIndex)) {
+			startIndex = committed.remove(startIndex);
+		}
+		if (startIndex != previous) {
+			save();
+		}
+	}
+
+	private void save() {
+		Properties props = new Properties();
+		props.setProperty(GENERATION, generation);
+		props.setProperty(SOURCE, source);
+		props.setProperty(START_INDEX, String.valueOf(startIndex));
+		if (cursor != null) {
+			props.setProperty(CURSOR, cursor);
+		}
+
+		try {
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				props.store(out, "SCIM sync checkpoint");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			/* Losing a checkpoint only costs re-importing, never fail the sync for it */
+			logger.warnv("Failed to save sync checkpoint {0}: {1}", file, e.getMessage());
+		}
+	}
+
+	/* The sync completed, the next one starts from scratch */
+	public void delete() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warnv("Failed to delete sync checkpoint {0}: {1}", file, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/* Runs the changed users sync of each component with "adaptivesync" enabled.
+ *
+ * The interval stays between "syncminperiod" and "syncmaxperiod" seconds. It
+ * is halved while the last runs keep returning a busy amount of changes and
+ * doubled while they return none. Errors and runs taking longer than a tenth
+ * of the interval double it as well, so a struggling backend is polled less.
+ *
+ * Every node schedules the component and one of them runs each sync. The
+ * watermark is the lastSync of the component in the database, like the
+ * Keycloak periodic sync, so it survives restarts and is shared by the nodes.
+ * A component never synced starts from the epoch rather than from now.
+ */
+public class SCIMSyncScheduler {
+	private static final Logger logger = Logger.getLogger(SCIMSyncScheduler.class);
+
+	private static final int DEFAULT_MIN_PERIOD = 60;
+	private static final int DEFAULT_MAX_PERIOD = 3600;
+	/* Number of past runs the change rate is averaged over */
+	private static final int WINDOW = 5;
+	/* A run slower than this fraction of the interval counts as high latency */
+	private static final int LATENCY_DIVISOR = 10;
+
+	private static class Schedule {
+		final UserStorageProviderModel model;
+		final int minPeriod;
+		final int maxPeriod;
+		final int busyChanges;
+		final Deque<Integer> changes = new ArrayDeque<Integer>();
+		int period;
+		ScheduledFuture<?> future;
+
+		Schedule(UserStorageProviderModel model) {
+			this.model = model;
+			this.minPeriod = SCIMUserSync.getIntConfig(model, "syncminperiod", DEFAULT_MIN_PERIOD);
+			this.maxPeriod = Math.max(minPeriod, SCIMUserSync.getIntConfig(model, "syncmaxperiod", DEFAULT_MAX_PERIOD));
+			/* A full page of changes per run means the directory is busy */
+			this.busyChanges = SCIMUserSync.getIntConfig(model, "syncpagesize", 100);
+			this.period = minPeriod;
+		}
+	}
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final Map<String, Schedule> schedules = new ConcurrentHashMap<String, Schedule>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "scim-sync-scheduler");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public SCIMSyncScheduler(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+	}
+
+	/* (Re)schedule the component, or cancel it if adaptive sync is off */
+	public void schedule(UserStorageProviderModel model) {
+		cancel(model.getId());
+
+		if (!model.isEnabled() || !Boolean.valueOf(model.getConfig().getFirst("adaptivesync"))) {
+			return;
+		}
+
+		Schedule schedule = new Schedule(model);
+		schedules.put(model.getId(), schedule);
+		logger.infov("Adaptive sync of {0} every {1}s to {2}s", model.getName(), schedule.minPeriod, schedule.maxPeriod);
+		next(schedule);
+	}
+
+	public void cancel(String componentId) {
+		Schedule schedule = schedules.remove(componentId);
+		if (schedule != null && schedule.future != null) {
+			schedule.future.cancel(false);
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		schedules.clear();
+	}
+
+	private void next(Schedule schedule) {
+		schedule.future = executor.schedule(() -> run(schedule), schedule.period, TimeUnit.SECONDS);
+	}
+
+	private void run(Schedule schedule) {
+		if (schedules.get(schedule.model.getId()) != schedule) {
+			/* Cancelled or replaced meanwhile */
+			return;
+		}
+
+		Date started = new Date();
+		boolean failed = false;
+		int changed = 0;
+
+		try {
+			SynchronizationResult result = syncOnce(schedule);
+			if (result != null) {
+				changed = result.getAdded() + result.getUpdated() + result.getRemoved();
+				failed = result.getFailed() > 0;
+			}
+		} catch (RuntimeException e) {
+			logger.errorv("Adaptive sync of {0} failed: {1}", schedule.model.getName(), e.getMessage());
+			failed = true;
+		}
+
+		long elapsed = System.currentTimeMillis() - started.getTime();
+		adjust(schedule, changed, failed, elapsed);
+
+		if (schedules.get(schedule.model.getId()) == schedule) {
+			next(schedule);
+		}
+	}
+
+	/* Only one cluster node runs the sync, the others return null */
+	private SynchronizationResult syncOnce(Schedule schedule) {
+		UserStorageProviderModel model = schedule.model;
+		String realmId = model.getParentId();
+		String taskKey = String.format("scim-adaptive-sync::%s", model.getId());
+
+		return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+			ExecutionResult<SynchronizationResult> result = cluster.executeIfNotExecuted(taskKey, schedule.maxPeriod, () -> {
+				/* Seconds, changes made while the sync runs are picked up again next time */
+				int started = (int) (System.currentTimeMillis() / 1000);
+				SynchronizationResult synced = factory.syncSince(new Date(lastSync(realmId, model) * 1000L),
+						sessionFactory, realmId, model);
+				saveLastSync(realmId, model, started);
+				return synced;
+			});
+			return result.isExecuted() ? result.getResult() : null;
+		});
+	}
+
+	/* Watermark stored by the last sync on any node, 0 if the component was never synced */
+	private int lastSync(String realmId, UserStorageProviderModel model) {
+		return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			ComponentModel component = realm == null ? null : realm.getComponent(model.getId());
+			return component == null ? 0 : new UserStorageProviderModel(component).getLastSync();
+		});
+	}
+
+	/* Same as the Keycloak periodic sync, the factory ignores updates changing only lastSync */
+	private void saveLastSync(String realmId, UserStorageProviderModel model, int lastSync) {
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			ComponentModel component = realm == null ? null : realm.getComponent(model.getId());
+			if (component == null) {
+				return;
+			}
+			UserStorageProviderModel persistent = new UserStorageProviderModel(component);
+			persistent.setLastSync(lastSync);
+			realm.updateComponent(persistent);
+			model.setLastSync(lastSync);
+		});
+	}
+
+	private void adjust(Schedule schedule, int changed, boolean failed, long elapsed) {
+		int previous = schedule.period;
+
+		schedule.changes.addLast(changed);
+		if (schedule.changes.size() > WINDOW) {
+			schedule.changes.removeFirst();
+		}
+		int average = (int) schedule.changes.stream().mapToInt(Integer::intValue).average().orElse(0);
+
+		if (failed || elapsed > schedule.period * 1000L / LATENCY_DIVISOR) {
+			/* Back off on errors or a slow backend */
+			schedule.period = schedule.period * 2;
+		} else if (average >= schedule.busyChanges) {
+			schedule.period = schedule.period / 2;
+		} else if (average == 0) {
+			schedule.period = schedule.period * 2;
+		}
+		schedule.period = Math.max(schedule.minPeriod, Math.min(schedule.maxPeriod, schedule.period));
+
+		if (schedule.period != previous) {
+			logger.infov("Adaptive sync of {0} now every {1}s ({2} changes on average, last run {3}ms{4})",
+					schedule.model.getName(), schedule.period, average, elapsed, failed ? ", failed" : "");
+		}
+	}
+}
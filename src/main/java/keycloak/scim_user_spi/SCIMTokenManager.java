@@ -0,0 +1,200 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/* Bearer token of a component authenticating with "authmode" token or
+ * clientcredentials, used instead of the CSRF cookie login.
+ *
+ * A static token ("apitoken") is sent as is. With client credentials the
+ * token is fetched from "tokenurl" (client_secret_basic) and kept until it
+ * expires. It is refreshed in the background ahead of its expiry, a fifth of
+ * its lifetime but at least 30 seconds before, so requests only fetch a token
+ * themselves when none could be obtained in the background. A token rejected
+ * with 401 is dropped and fetched again once.
+ */
+public class SCIMTokenManager {
+	private static final Logger logger = Logger.getLogger(SCIMTokenManager.class);
+
+	/* Settings the credentials are made of */
+	private static final List<String> CREDENTIAL_SETTINGS = Arrays.asList("authmode", "tokenurl", "clientid",
+			"clientsecret", "tokenscope", "apitoken");
+
+	public static final String MODE_SESSION = "session";
+	public static final String MODE_TOKEN = "token";
+	public static final String MODE_CLIENT_CREDENTIALS = "clientcredentials";
+
+	/* Lifetime assumed when the token endpoint does not return expires_in */
+	private static final long DEFAULT_LIFETIME = 300;
+	private static final long MIN_REFRESH_MARGIN = 30;
+	/* Delay before retrying a failed background refresh */
+	private static final long RETRY_DELAY = 10;
+
+	private final KeycloakSessionFactory sessionFactory;
+	private final ComponentModel model;
+	private final ScheduledExecutorService executor;
+	private final List<String> credentials;
+	private volatile String token;
+	/* Milliseconds */
+	private volatile long expiresAt;
+	private ScheduledFuture<?> refresh;
+	/* Only started managers refresh in the background */
+	private boolean started = false;
+
+	public SCIMTokenManager(KeycloakSessionFactory sessionFactory, ComponentModel model, ScheduledExecutorService executor) {
+		this.sessionFactory = sessionFactory;
+		this.model = model;
+		this.executor = executor;
+		this.credentials = credentials(model);
+	}
+
+	private static List<String> credentials(ComponentModel model) {
+		List<String> values = new ArrayList<String>();
+		for (String name : CREDENTIAL_SETTINGS) {
+			values.add(model.getConfig().getFirst(name));
+		}
+		return values;
+	}
+
+	/* False once the credentials of the component were changed */
+	public boolean hasCredentialsOf(ComponentModel model) {
+		return credentials.equals(credentials(model));
+	}
+
+	public static String getMode(ComponentModel model) {
+		String mode = model.getConfig().getFirst("authmode");
+		return mode == null || mode.isEmpty() ? MODE_SESSION : mode;
+	}
+
+	/* True if requests carry a bearer token instead of the login cookies */
+	public static boolean isBearer(ComponentModel model) {
+		return !MODE_SESSION.equals(getMode(model));
+	}
+
+	/* Fetch the first token in the background, before any request needs it */
+	public synchronized void start() {
+		if (!MODE_CLIENT_CREDENTIALS.equals(getMode(model)) || started) {
+			return;
+		}
+		started = true;
+		if (token == null) {
+			schedule(0);
+		}
+	}
+
+	public synchronized void close() {
+		started = false;
+		if (refresh != null) {
+			refresh.cancel(false);
+			refresh = null;
+		}
+	}
+
+	/* The current token, fetched on the calling thread only when none is valid */
+	public String getToken(KeycloakSession session) {
+		if (MODE_TOKEN.equals(getMode(model))) {
+			return model.getConfig().getFirst("apitoken");
+		}
+
+		String current = token;
+		if (current != null && now() < expiresAt) {
+			return current;
+		}
+		synchronized (this) {
+			if (token == null || now() >= expiresAt) {
+				logger.infov("No valid SCIM token for {0}, fetching one", model.getName());
+				fetch(session);
+			}
+			return token;
+		}
+	}
+
+	/* The server rejected the token, the next getToken() fetches another one */
+	public synchronized void invalidate(String rejected) {
+		if (rejected != null && rejected.equals(token)) {
+			token = null;
+		}
+	}
+
+	private synchronized void fetch(KeycloakSession session) {
+		JsonNode result;
+		try {
+			result = requestToken(session);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		JsonNode accessToken = result.get("access_token");
+		if (accessToken == null || accessToken.asText().isEmpty()) {
+			throw new RuntimeException("Token endpoint returned no access_token");
+		}
+		long lifetime = result.hasNonNull("expires_in") ? result.get("expires_in").asLong(DEFAULT_LIFETIME) : DEFAULT_LIFETIME;
+
+		token = accessToken.asText();
+		expiresAt = now() + lifetime * 1000;
+		schedule(Math.max(0, lifetime - Math.max(MIN_REFRESH_MARGIN, lifetime / 5)));
+	}
+
+	/* Client credentials grant against the token endpoint, returns the token response */
+	JsonNode requestToken(KeycloakSession session) throws Exception {
+		String url = model.getConfig().getFirst("tokenurl");
+		String scope = model.getConfig().getFirst("tokenscope");
+
+		SimpleHttp request = SimpleHttp.doPost(url, session)
+				.authBasic(model.getConfig().getFirst("clientid"), model.getConfig().getFirst("clientsecret"))
+				.param("grant_type", "client_credentials");
+		if (scope != null && !scope.isEmpty()) {
+			request.param("scope", scope);
+		}
+		SimpleHttp.Response response = request.asResponse();
+		try {
+			if (response.getStatus() != 200) {
+				throw new RuntimeException(String.format("Token endpoint returned %d", response.getStatus()));
+			}
+			return response.asJson();
+		} finally {
+			response.close();
+		}
+	}
+
+	/* Milliseconds */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private synchronized void schedule(long delay) {
+		if (!started) {
+			return;
+		}
+		if (refresh != null) {
+			refresh.cancel(false);
+		}
+		refresh = executor.schedule(this::refresh, delay, TimeUnit.SECONDS);
+	}
+
+	private void refresh() {
+		try (KeycloakSession session = sessionFactory.create()) {
+			fetch(session);
+			logger.debugv("Refreshed SCIM token of {0}", model.getName());
+		} catch (RuntimeException e) {
+			logger.warnv("Failed to refresh SCIM token of {0}, retrying in {1}s: {2}", model.getName(),
+					RETRY_DELAY, e.getMessage());
+			schedule(RETRY_DELAY);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.ReadOnlyException;
+import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.apache.http.HttpStatus;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* User served from the SCIM cache without being imported.
+ *
+ * Username, names, email, enabled state and groups come from the SCIM
+ * resource. Everything Keycloak has to persist on its own (credentials,
+ * required actions, role mappings, other attributes) goes to the federated
+ * storage. SCIM groups map to the realm groups of the same name, groups
+ * missing in Keycloak are not created.
+ */
+public class SCIMTransientUser extends AbstractUserAdapterFederatedStorage {
+
+	private static final Logger logger = Logger.getLogger(SCIMTransientUser.class);
+
+	private final Scim scim;
+	private final SCIMUserStorageProviderFactory factory;
+	private final SCIMUserCache cache;
+	private SCIMUser.Resource resource;
+
+	public SCIMTransientUser(KeycloakSession session, RealmModel realm, ComponentModel model, Scim scim,
+			SCIMUserStorageProviderFactory factory, SCIMUser.Resource resource) {
+		super(session, realm, model);
+		this.scim = scim;
+		this.factory = factory;
+		this.cache = factory.getUserCache(model);
+		this.resource = resource;
+	}
+
+	@Override
+	public String getUsername() {
+		return resource.getUserName();
+	}
+
+	@Override
+	public void setUsername(String username) {
+		if (!getUsername().equals(username)) {
+			/* Changing username not supported */
+			throw new ReadOnlyException("Renaming SCIM users is not supported");
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return scim.getActive(resource);
+	}
+
+	/* Written to the SCIM active attribute isEnabled() reads, not to the federated storage */
+	@Override
+	public void setEnabled(boolean enabled) {
+		if (enabled != isEnabled()) {
+			updateScim("active", Collections.singletonList(String.valueOf(enabled)));
+		}
+	}
+
+	/* Attributes held by the SCIM resource */
+	private String getScimAttribute(String name) {
+		switch (name) {
+		case UserModel.USERNAME:
+			return getUsername();
+		case UserModel.FIRST_NAME:
+			return scim.getFirstName(resource);
+		case UserModel.LAST_NAME:
+			return scim.getLastName(resource);
+		case UserModel.EMAIL:
+			return scim.getEmail(resource);
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isScimAttribute(String name) {
+		return UserModel.USERNAME.equals(name) || UserModel.FIRST_NAME.equals(name) ||
+				UserModel.LAST_NAME.equals(name) || UserModel.EMAIL.equals(name);
+	}
+
+	@Override
+	public String getFirstAttribute(String name) {
+		if (isScimAttribute(name)) {
+			return getScimAttribute(name);
+		}
+		return super.getFirstAttribute(name);
+	}
+
+	@Override
+	public Stream<String> getAttributeStream(String name) {
+		if (isScimAttribute(name)) {
+			String value = getScimAttribute(name);
+			return value == null ? Stream.empty() : Stream.of(value);
+		}
+		return super.getAttributeStream(name);
+	}
+
+	@Override
+	public Map<String, List<String>> getAttributes() {
+		Map<String, List<String>> attributes = new HashMap<String, List<String>>(super.getAttributes());
+		for (String name : new String[] { UserModel.USERNAME, UserModel.FIRST_NAME, UserModel.LAST_NAME, UserModel.EMAIL }) {
+			String value = getScimAttribute(name);
+			if (value != null) {
+				attributes.put(name, Collections.singletonList(value));
+			}
+		}
+		return attributes;
+	}
+
+	@Override
+	public void setSingleAttribute(String name, String value) {
+		if (isScimAttribute(name)) {
+			setAttribute(name, Collections.singletonList(value));
+			return;
+		}
+		super.setSingleAttribute(name, value);
+	}
+
+	@Override
+	public void setAttribute(String name, List<String> values) {
+		if (!isScimAttribute(name)) {
+			super.setAttribute(name, values);
+			return;
+		}
+		if (UserModel.USERNAME.equals(name)) {
+			setUsername(values.get(0));
+			return;
+		}
+		if (values.isEmpty() || values.get(0) == null || values.get(0).equals(getScimAttribute(name))) {
+			return;
+		}
+		updateScim(name, values);
+	}
+
+	private void updateScim(String name, List<String> values) {
+		if (factory.writeBehind(storageProviderModel, SCIMOutbox.Operation.UPDATE, getUsername(), name, values)) {
+			/* Keep serving the change until the dispatcher sent it, cached resources are shared read-only */
+			SCIMUser.Resource updated = copy(resource);
+			scim.setUserAttr(updated, name, values.get(0));
+			resource = updated;
+			cache.put(resource);
+			return;
+		}
+
+		SimpleHttp.Response resp = scim.updateUser(scim, getUsername(), name, values);
+		try {
+			if (resp.getStatus() != HttpStatus.SC_OK &&
+					resp.getStatus() != HttpStatus.SC_NO_CONTENT) {
+				logger.warn("Unexpected PUT status code returned");
+				resp.close();
+				return;
+			}
+			resp.close();
+		} catch (IOException e) {
+			logger.errorv("Error: {0}", e.getMessage());
+			throw new RuntimeException(e);
+		}
+
+		/* Reload the updated resource, updateUser dropped the memoized one */
+		cache.remove(getUsername());
+		SCIMUser scimuser = scim.getUserByUsername(getUsername(), Scim.Projection.FULL);
+		if (scimuser.getTotalResults() > 0) {
+			resource = scimuser.getResources().get(0);
+			cache.put(resource);
+		}
+	}
+
+	private static SCIMUser.Resource copy(SCIMUser.Resource resource) {
+		try {
+			return JsonSerialization.readValue(JsonSerialization.writeValueAsBytes(resource), SCIMUser.Resource.class);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected Set<GroupModel> getGroupsInternal() {
+		Set<GroupModel> groups = new HashSet<GroupModel>(super.getGroupsInternal());
+		for (String name : scim.getGroupsList(resource)) {
+			GroupModel group = session.groups().getGroupByName(realm, null, name);
+			if (group != null) {
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,28 @@
+package keycloak.scim_user_spi;
+
+import java.util.List;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* SCIM users of one component kept on this node, keyed by lower case userName.
+ *
+ * Backs the transient user mode, where lookups are answered from here and the
+ * SCIM server instead of the local Keycloak storage. Entries are refreshed by
+ * lookups and sync, and dropped on the provider's own writes.
+ */
+public interface SCIMUserCache {
+
+	/* Returns null when the user is not cached or its entry expired */
+	SCIMUser.Resource get(String username);
+
+	void put(SCIMUser.Resource user);
+
+	void remove(String username);
+
+	int size();
+
+	/* Lower case userNames of the entries not expired */
+	List<String> usernames();
+
+	void clear();
+}
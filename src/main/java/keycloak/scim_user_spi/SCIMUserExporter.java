@@ -0,0 +1,583 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpStatus;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.util.JsonSerialization;
+
+import keycloak.scim_user_spi.schemas.SCIMBulkResponse;
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Pushes the local users of the realm into SCIM ("exportlocalusers").
+ *
+ * The export starts when the provider is saved with the option enabled and
+ * runs in the background on one cluster node. Local users that are not linked
+ * to a federation provider are read "syncpagesize" at a time and created in
+ * SCIM, with /Bulk requests of up to maxOperations users when the server
+ * advertises bulk support, otherwise with individual POSTs. Up to
+ * "exportworkers" requests are in flight and "exportrate" caps the users sent
+ * per second. Users created (201) or already present in SCIM (409) are then
+ * linked to the provider, so syncs update them instead of reporting a
+ * conflict. Their local credentials are still checked by Keycloak.
+ *
+ * Users are paged in username order after the last exported one, the offset
+ * is only where to look for it: users deleted or added meanwhile shift the
+ * offset without skipping anyone.
+ *
+ * Progress is logged after each page and saved in the scim-export-<id> realm
+ * attribute, shared by the cluster nodes, so an interrupted export resumes
+ * from the last completed page on whichever node runs it next. A page where
+ * every user failed stops the export without moving past it. Users failing
+ * on other pages are kept in the checkpoint and sent again once the last
+ * page was read; the export is only complete when none is left, otherwise it
+ * retries them the next time it runs. Disabling and enabling the option
+ * starts over.
+ */
+public class SCIMUserExporter {
+	private static final Logger logger = Logger.getLogger(SCIMUserExporter.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int DEFAULT_WORKERS = 4;
+	private static final int DEFAULT_BULK_OPERATIONS = 100;
+	/* Seconds other cluster nodes consider a running export alive */
+	private static final int TASK_TIMEOUT = 3600;
+	/* Failed users kept for a retry, the export stops rather than keep more in the realm attribute */
+	private static final int MAX_RETRIES = 1000;
+
+	/* Checkpoint of an export, persisted after each page */
+	private static class Progress {
+		private static final String OFFSET = "offset";
+		private static final String AFTER = "after";
+		private static final String CREATED = "created";
+		private static final String EXISTING = "existing";
+		private static final String FAILED = "failed";
+		private static final String COMPLETE = "complete";
+		private static final String RETRY = "retry.";
+
+		int offset = 0;
+		/* Username of the last user exported, null before the first page */
+		String after;
+		int created = 0;
+		int existing = 0;
+		/* Users still failing, retried before the export completes */
+		int failed = 0;
+		List<String> retry = new ArrayList<String>();
+		boolean complete = false;
+
+		static String attribute(ComponentModel model) {
+			return String.format("scim-export-%s", model.getId());
+		}
+
+		static Progress load(RealmModel realm, ComponentModel model) {
+			Progress progress = new Progress();
+			String value = realm.getAttribute(attribute(model));
+
+			if (value != null) {
+				Properties props = new Properties();
+				try {
+					props.load(new StringReader(value));
+					progress.offset = Integer.parseInt(props.getProperty(OFFSET));
+					progress.after = props.getProperty(AFTER);
+					progress.created = Integer.parseInt(props.getProperty(CREATED));
+					progress.existing = Integer.parseInt(props.getProperty(EXISTING));
+					progress.failed = Integer.parseInt(props.getProperty(FAILED));
+					progress.complete = Boolean.parseBoolean(props.getProperty(COMPLETE));
+					for (int i = 0; props.getProperty(RETRY + i) != null; i++) {
+						progress.retry.add(props.getProperty(RETRY + i));
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.warnv("Ignoring unreadable export checkpoint of {0}: {1}", model.getName(), e.getMessage());
+					return new Progress();
+				}
+			}
+			return progress;
+		}
+
+		void save(RealmModel realm, ComponentModel model) {
+			Properties props = new Properties();
+			props.setProperty(OFFSET, String.valueOf(offset));
+			if (after != null) {
+				props.setProperty(AFTER, after);
+			}
+			props.setProperty(CREATED, String.valueOf(created));
+			props.setProperty(EXISTING, String.valueOf(existing));
+			props.setProperty(FAILED, String.valueOf(failed));
+			props.setProperty(COMPLETE, String.valueOf(complete));
+			for (int i = 0; i < retry.size(); i++) {
+				props.setProperty(RETRY + i, retry.get(i));
+			}
+
+			StringWriter out = new StringWriter();
+			try {
+				props.store(out, null);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			realm.setAttribute(attribute(model), out.toString());
+		}
+	}
+
+	/* One page of local users */
+	private static class Page {
+		/* Position and username of the last user of the page */
+		final int offset;
+		final String after;
+		/* Local users read, federated ones included */
+		final int rows;
+		final List<SCIMUser.Resource> users;
+
+		Page(int offset, String after, int rows, List<SCIMUser.Resource> users) {
+			this.offset = offset;
+			this.after = after;
+			this.rows = rows;
+			this.users = users;
+		}
+	}
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final Map<String, Future<?>> tasks = new ConcurrentHashMap<String, Future<?>>();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "scim-user-export");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public SCIMUserExporter(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+	}
+
+	public static boolean isEnabled(ComponentModel model) {
+		return Boolean.valueOf(model.getConfig().getFirst("exportlocalusers"));
+	}
+
+	/* Start or resume the export of the component if enabled, restart discards a previous one */
+	public void start(ComponentModel model, boolean restart) {
+		cancel(model.getId());
+
+		if (!new UserStorageProviderModel(model).isEnabled() || !isEnabled(model)) {
+			return;
+		}
+		if (restart) {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				RealmModel realm = session.realms().getRealm(model.getParentId());
+				if (realm != null) {
+					delete(realm, model);
+				}
+			});
+		}
+		tasks.put(model.getId(), executor.submit(() -> run(model)));
+	}
+
+	public void cancel(String componentId) {
+		Future<?> task = tasks.remove(componentId);
+		if (task != null) {
+			task.cancel(true);
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		tasks.clear();
+	}
+
+	public static void delete(RealmModel realm, ComponentModel model) {
+		realm.removeAttribute(Progress.attribute(model));
+	}
+
+	private Progress load(ComponentModel model) {
+		return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(model.getParentId());
+			return realm == null ? new Progress() : Progress.load(realm, model);
+		});
+	}
+
+	private void save(ComponentModel model, Progress progress) {
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				RealmModel realm = session.realms().getRealm(model.getParentId());
+				if (realm != null) {
+					progress.save(realm, model);
+				}
+			});
+		} catch (RuntimeException e) {
+			/* Losing a checkpoint only costs re-sending users, which are then skipped as existing */
+			logger.warnv("Failed to save export checkpoint of {0}: {1}", model.getName(), e.getMessage());
+		}
+	}
+
+	private void run(ComponentModel model) {
+		if (load(model).complete) {
+			return;
+		}
+		String taskKey = String.format("scim-export::%s", model.getId());
+
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+				cluster.executeIfNotExecuted(taskKey, TASK_TIMEOUT, () -> {
+					export(model, load(model));
+					return null;
+				});
+			});
+		} catch (RuntimeException e) {
+			logger.errorv("Export of local users to {0} failed: {1}", model.getName(), e.getMessage());
+		}
+	}
+
+	private void export(ComponentModel model, Progress progress) {
+		int pageSize = SCIMUserSync.getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		int workers = Math.max(1, SCIMUserSync.getIntConfig(model, "exportworkers", DEFAULT_WORKERS));
+		int rate = SCIMUserSync.getIntConfig(model, "exportrate", 0);
+		String realmId = model.getParentId();
+
+		SCIMServiceProviderConfig config;
+		try (KeycloakSession session = sessionFactory.create()) {
+			config = new Scim(session, model, factory).getServiceProviderConfig();
+		}
+		SCIMServiceProviderConfig.Feature bulk = config.getBulk();
+		boolean bulkSupported = bulk != null && Boolean.TRUE.equals(bulk.getSupported());
+		int bulkOperations = bulkSupported && bulk.getMaxOperations() != null ? bulk.getMaxOperations() : DEFAULT_BULK_OPERATIONS;
+		int bulkPayload = bulkSupported && bulk.getMaxPayloadSize() != null ? bulk.getMaxPayloadSize() : Integer.MAX_VALUE;
+
+		int total = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+			UserStoragePrivateUtil.userLocalStorage(session).getUsersCount(session.realms().getRealm(realmId)));
+		logger.infov("Exporting local users to {0} from user {1} of {2}, with {3}", model.getName(),
+				progress.offset, total, bulkSupported ? "bulk requests" : "individual requests");
+
+		long started = System.currentTimeMillis();
+		int sent = 0;
+		BiFunction<List<SCIMUser.Resource>, List<String>, int[]> push = (users, exported) -> bulkSupported ?
+				pushBulk(model, users, workers, bulkOperations, bulkPayload, exported) :
+				pushEach(model, users, workers, exported);
+
+		while (!Thread.currentThread().isInterrupted()) {
+			Page page = readPage(model, realmId, progress, pageSize);
+
+			List<String> exported = Collections.synchronizedList(new ArrayList<String>());
+			int[] counts = push.apply(page.users, exported);
+			if (!page.users.isEmpty() && counts[0] + counts[1] == 0) {
+				logger.errorv("Export of local users to {0} stopped at user {1}, every user of the page failed",
+						model.getName(), progress.offset);
+				return;
+			}
+			List<String> failed = failed(page.users, exported);
+			if (progress.retry.size() + failed.size() > MAX_RETRIES) {
+				logger.errorv("Export of local users to {0} stopped at user {1}, more than {2} users failed",
+						model.getName(), progress.offset, MAX_RETRIES);
+				return;
+			}
+			link(model, realmId, exported);
+
+			progress.offset = page.offset;
+			progress.after = page.after;
+			progress.created += counts[0];
+			progress.existing += counts[1];
+			progress.retry.addAll(failed);
+			boolean last = page.rows < pageSize;
+			if (last && !progress.retry.isEmpty()) {
+				retry(model, realmId, progress, push);
+			}
+			progress.failed = progress.retry.size();
+			progress.complete = last && progress.retry.isEmpty();
+			save(model, progress);
+			logger.infov("Export to {0}: {1} of {2} local users processed, {3} created, {4} already present, {5} failed",
+					model.getName(), progress.offset, total, progress.created, progress.existing, progress.failed);
+
+			if (last) {
+				if (!progress.complete) {
+					logger.warnv("Export to {0} is not complete, {1} failed users are retried when it runs again",
+							model.getName(), progress.failed);
+				}
+				return;
+			}
+
+			sent += page.users.size();
+			throttle(rate, sent, started);
+		}
+	}
+
+	/* Users of the page that were neither created nor found in SCIM */
+	private static List<String> failed(List<SCIMUser.Resource> users, List<String> exported) {
+		List<String> failed = new ArrayList<String>();
+		for (SCIMUser.Resource user : users) {
+			if (!exported.contains(user.getUserName())) {
+				failed.add(user.getUserName());
+			}
+		}
+		return failed;
+	}
+
+	/* Send the users that failed earlier again, users deleted or linked meanwhile are dropped */
+	private void retry(ComponentModel model, String realmId, Progress progress,
+			BiFunction<List<SCIMUser.Resource>, List<String>, int[]> push) {
+		List<SCIMUser.Resource> users = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			Scim scim = new Scim(session, model, factory);
+			List<SCIMUser.Resource> resources = new ArrayList<SCIMUser.Resource>();
+			for (String username : progress.retry) {
+				UserModel user = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+				if (user != null && user.getFederationLink() == null) {
+					resources.add(scim.setupUser(user));
+				}
+			}
+			return resources;
+		});
+		logger.infov("Retrying the export of {0} users to {1}", users.size(), model.getName());
+
+		List<String> exported = Collections.synchronizedList(new ArrayList<String>());
+		int[] counts = push.apply(users, exported);
+		link(model, realmId, exported);
+		progress.created += counts[0];
+		progress.existing += counts[1];
+		progress.retry = failed(users, exported);
+	}
+
+	/* The next local users after progress.after that are not federated. The
+	 * page is read from a window ending pageSize users past the stored offset,
+	 * which is moved back while it does not reach the last exported user.
+	 */
+	private Page readPage(ComponentModel model, String realmId, Progress progress, int pageSize) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(UserModel.SEARCH, "*");
+		params.put(UserModel.INCLUDE_SERVICE_ACCOUNT, Boolean.FALSE.toString());
+
+		return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			Scim scim = new Scim(session, model, factory);
+			String after = progress.after;
+			int start = after == null ? progress.offset : Math.max(0, progress.offset - pageSize);
+			List<UserModel> window;
+			int skip;
+
+			while (true) {
+				int count = progress.offset - start + pageSize;
+				window = UserStoragePrivateUtil.userLocalStorage(session)
+						.searchForUserStream(realm, params, start, count)
+						.collect(Collectors.toList());
+				skip = skip(window, start, after);
+				if (skip >= 0) {
+					break;
+				}
+				/* Users before the window were deleted, the last exported one is further back */
+				start = Math.max(0, start - count);
+			}
+
+			List<UserModel> users = window.subList(skip, Math.min(window.size(), skip + pageSize));
+			List<SCIMUser.Resource> resources = new ArrayList<SCIMUser.Resource>();
+			for (UserModel user : users) {
+				if (user.getFederationLink() == null) {
+					resources.add(scim.setupUser(user));
+				}
+			}
+			return new Page(start + skip + users.size(), users.isEmpty() ? after : users.get(users.size() - 1).getUsername(),
+					users.size(), resources);
+		});
+	}
+
+	/* Users of the window up to the last exported one, -1 when the window starts past it */
+	private static int skip(List<UserModel> window, int start, String after) {
+		if (after == null) {
+			return 0;
+		}
+		for (int i = 0; i < window.size(); i++) {
+			if (after.equals(window.get(i).getUsername())) {
+				return i + 1;
+			}
+		}
+		if (window.isEmpty() || window.get(0).getUsername().compareTo(after) > 0) {
+			/* Unless the window is the start of the realm */
+			return start > 0 ? -1 : 0;
+		}
+		/* The last exported user was deleted meanwhile */
+		int skip = 0;
+		while (skip < window.size() && window.get(skip).getUsername().compareTo(after) <= 0) {
+			skip++;
+		}
+		return skip;
+	}
+
+	/* Link the exported users to the provider, unless linked meanwhile */
+	private void link(ComponentModel model, String realmId, List<String> usernames) {
+		if (usernames.isEmpty()) {
+			return;
+		}
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				RealmModel realm = session.realms().getRealm(realmId);
+				for (String username : usernames) {
+					UserModel user = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+					if (user != null && user.getFederationLink() == null) {
+						user.setFederationLink(model.getId());
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			/* The next export finds them unlinked and links them on the 409 */
+			logger.warnv("Failed to link {0} users exported to {1}: {2}", usernames.size(), model.getName(),
+					e.getMessage());
+		}
+	}
+
+	/* Keep the average below rate users per second, 0 does not limit */
+	private static void throttle(int rate, int sent, long started) {
+		if (rate <= 0) {
+			return;
+		}
+		long wait = started + sent * 1000L / rate - System.currentTimeMillis();
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/* Returns the created, existing and failed counts */
+	private int[] pushEach(ComponentModel model, List<SCIMUser.Resource> users, int workers, List<String> exported) {
+		AtomicInteger created = new AtomicInteger();
+		AtomicInteger existing = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		Semaphore inFlight = new Semaphore(workers);
+		List<CompletableFuture<Integer>> requests = new ArrayList<CompletableFuture<Integer>>();
+
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, model, factory);
+			for (SCIMUser.Resource user : users) {
+				inFlight.acquireUninterruptibly();
+				requests.add(scim.createUserAsync(user).whenComplete((status, e) -> {
+					inFlight.release();
+					if (e == null && status == HttpStatus.SC_CREATED) {
+						created.incrementAndGet();
+						exported.add(user.getUserName());
+					} else if (e == null && status == HttpStatus.SC_CONFLICT) {
+						existing.incrementAndGet();
+						exported.add(user.getUserName());
+					} else {
+						logger.warnv("Failed to export user {0}: {1}", user.getUserName(), e != null ? e.getMessage() : status);
+						failed.incrementAndGet();
+					}
+				}));
+			}
+			CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+		}
+
+		return new int[] { created.get(), existing.get(), failed.get() };
+	}
+
+	/* Returns the created, existing and failed counts */
+	private int[] pushBulk(ComponentModel model, List<SCIMUser.Resource> users, int workers, int maxOperations,
+			int maxPayload, List<String> exported) {
+		List<List<SCIMUser.Resource>> chunks = chunk(users, maxOperations, maxPayload);
+		int[] counts = new int[3];
+		Semaphore inFlight = new Semaphore(workers);
+		List<CompletableFuture<Void>> requests = new ArrayList<CompletableFuture<Void>>();
+
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, model, factory);
+			for (List<SCIMUser.Resource> chunk : chunks) {
+				inFlight.acquireUninterruptibly();
+				requests.add(scim.bulkCreateUsersAsync(chunk).handle((response, e) -> {
+					inFlight.release();
+					int[] chunkCounts = bulkCounts(chunk, e == null ? response : null, exported);
+					synchronized (counts) {
+						for (int i = 0; i < counts.length; i++) {
+							counts[i] += chunkCounts[i];
+						}
+					}
+					return null;
+				}));
+			}
+			CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).join();
+		}
+
+		return counts;
+	}
+
+	/* Split the users in bulk requests within the operation and payload limits of the server */
+	private static List<List<SCIMUser.Resource>> chunk(List<SCIMUser.Resource> users, int maxOperations, int maxPayload) {
+		List<List<SCIMUser.Resource>> chunks = new ArrayList<List<SCIMUser.Resource>>();
+		List<SCIMUser.Resource> chunk = new ArrayList<SCIMUser.Resource>();
+		/* Envelope of the request and of each operation */
+		int payload = 256;
+
+		for (SCIMUser.Resource user : users) {
+			int size = 128 + serializedSize(user);
+			if (!chunk.isEmpty() && (chunk.size() >= maxOperations || payload + size > maxPayload)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<SCIMUser.Resource>();
+				payload = 256;
+			}
+			chunk.add(user);
+			payload += size;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static int serializedSize(SCIMUser.Resource user) {
+		try {
+			return JsonSerialization.writeValueAsBytes(user).length;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static int[] bulkCounts(List<SCIMUser.Resource> chunk, SCIMBulkResponse response, List<String> exported) {
+		int[] counts = new int[3];
+		Map<String, String> statuses = new HashMap<String, String>();
+		if (response != null && response.getOperations() != null) {
+			for (SCIMBulkResponse.Operation operation : response.getOperations()) {
+				statuses.put(operation.getBulkId(), operation.getStatus());
+			}
+		}
+
+		for (SCIMUser.Resource user : chunk) {
+			String status = statuses.get(user.getUserName());
+			if (String.valueOf(HttpStatus.SC_CREATED).equals(status)) {
+				counts[0]++;
+				exported.add(user.getUserName());
+			} else if (String.valueOf(HttpStatus.SC_CONFLICT).equals(status)) {
+				counts[1]++;
+				exported.add(user.getUserName());
+			} else {
+				logger.warnv("Failed to export user {0}: {1}", user.getUserName(), status);
+				counts[2]++;
+			}
+		}
+		return counts;
+	}
+}
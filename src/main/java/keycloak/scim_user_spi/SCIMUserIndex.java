@@ -0,0 +1,160 @@
+package keycloak.scim_user_spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* In-memory secondary indexes of the SCIM users of one component, from
+ * email, externalId and the "indexattributes" values to userName.
+ *
+ * Every resource fetched with the full projection (lookups, sync, cache
+ * fills) is indexed, so email and attribute lookups can be answered without
+ * a SCIM search. Values and userNames are matched case-insensitively, the
+ * userNames returned are lower case as Keycloak stores them. Entries may be
+ * stale and callers verify the user they resolve.
+ *
+ * Extra attributes are top-level attribute names, or extension attributes
+ * written as "<schema urn>:<attribute>".
+ */
+public class SCIMUserIndex {
+
+	public static final String EMAIL = "email";
+	public static final String EXTERNAL_ID = "externalId";
+
+	private final List<String> attributes = new ArrayList<String>();
+	private final List<String> extraAttributes;
+	/* attribute -> value -> userNames */
+	private final Map<String, Map<String, Set<String>>> indexes = new HashMap<String, Map<String, Set<String>>>();
+	/* Lower case userName -> attribute -> values, to drop the previous values on update */
+	private final Map<String, Map<String, List<String>>> entries = new HashMap<String, Map<String, List<String>>>();
+
+	public SCIMUserIndex(List<String> extraAttributes) {
+		this.extraAttributes = extraAttributes;
+		attributes.add(EMAIL);
+		attributes.add(EXTERNAL_ID);
+		attributes.addAll(extraAttributes);
+		for (String attribute : attributes) {
+			indexes.put(attribute, new HashMap<String, Set<String>>());
+		}
+	}
+
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	/* Attributes requested on top of the full projection */
+	public List<String> getExtraAttributes() {
+		return extraAttributes;
+	}
+
+	public boolean isIndexed(String attribute) {
+		return indexes.containsKey(attribute);
+	}
+
+	public synchronized Set<String> getUsernames(String attribute, String value) {
+		Map<String, Set<String>> index = indexes.get(attribute);
+		if (index == null || value == null) {
+			return Collections.emptySet();
+		}
+		Set<String> usernames = index.get(value.toLowerCase());
+		return usernames == null ? Collections.<String>emptySet() : new HashSet<String>(usernames);
+	}
+
+	public synchronized void update(SCIMUser.Resource user) {
+		if (user.getUserName() == null) {
+			return;
+		}
+		String username = user.getUserName().toLowerCase();
+		remove(username);
+
+		Map<String, List<String>> entry = new HashMap<String, List<String>>();
+		for (String attribute : attributes) {
+			List<String> values = values(user, attribute);
+			if (values.isEmpty()) {
+				continue;
+			}
+			entry.put(attribute, values);
+			for (String value : values) {
+				indexes.get(attribute).computeIfAbsent(value, v -> new HashSet<String>()).add(username);
+			}
+		}
+		if (!entry.isEmpty()) {
+			entries.put(username, entry);
+		}
+	}
+
+	public synchronized void remove(String userName) {
+		String username = userName.toLowerCase();
+		Map<String, List<String>> entry = entries.remove(username);
+		if (entry == null) {
+			return;
+		}
+		for (Map.Entry<String, List<String>> values : entry.entrySet()) {
+			Map<String, Set<String>> index = indexes.get(values.getKey());
+			for (String value : values.getValue()) {
+				Set<String> usernames = index.get(value);
+				if (usernames != null) {
+					usernames.remove(username);
+					if (usernames.isEmpty()) {
+						index.remove(value);
+					}
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		for (Map<String, Set<String>> index : indexes.values()) {
+			index.clear();
+		}
+	}
+
+	/* Lower case values of the attribute */
+	private static List<String> values(SCIMUser.Resource user, String attribute) {
+		List<String> values = new ArrayList<String>();
+
+		switch (attribute) {
+		case EMAIL:
+			if (user.getEmails() != null) {
+				for (SCIMUser.Resource.Email email : user.getEmails()) {
+					add(values, email.getValue());
+				}
+			}
+			break;
+		case EXTERNAL_ID:
+			add(values, user.getExternalId());
+			break;
+		default:
+			Object value;
+			int idx = attribute.lastIndexOf(':');
+			if (idx != -1) {
+				Object extension = user.getAdditionalProperties().get(attribute.substring(0, idx));
+				value = extension instanceof Map ? ((Map<?, ?>) extension).get(attribute.substring(idx + 1)) : null;
+			} else {
+				value = user.getAdditionalProperties().get(attribute);
+			}
+			if (value instanceof List) {
+				for (Object v : (List<?>) value) {
+					add(values, v);
+				}
+			} else {
+				add(values, value);
+			}
+			break;
+		}
+		return values;
+	}
+
+	private static void add(List<String> values, Object value) {
+		if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+			values.add(value.toString().toLowerCase());
+		}
+	}
+}
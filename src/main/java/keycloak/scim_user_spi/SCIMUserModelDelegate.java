@@ -3,11 +3,14 @@ package keycloak.scim_user_spi;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.utils.UserModelDelegate;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.apache.http.HttpStatus;
 
@@ -19,14 +22,61 @@ public class SCIMUserModelDelegate extends UserModelDelegate {
 
 	private final Scim scim;
 
-	public SCIMUserModelDelegate(Scim scim, UserModel delegate, ComponentModel model) {
+	private final SCIMUserStorageProvider provider;
+
+	private final RealmModel realm;
+
+	/* Group membership is joined on first access, see SCIMUserStorageProvider.materializeGroups() */
+	private boolean groupsMaterialized = false;
+
+	public SCIMUserModelDelegate(SCIMUserStorageProvider provider, RealmModel realm, Scim scim, UserModel delegate,
+			ComponentModel model) {
 		super(delegate);
 		this.model = model;
 		this.scim = scim;
+		this.provider = provider;
+		this.realm = realm;
+	}
+
+	private void materializeGroups() {
+		if (!groupsMaterialized) {
+			provider.materializeGroups(realm, this);
+			groupsMaterialized = true;
+		}
+	}
+
+	@Override
+	public Stream<GroupModel> getGroupsStream() {
+		materializeGroups();
+		return super.getGroupsStream();
+	}
+
+	@Override
+	public boolean isMemberOf(GroupModel group) {
+		materializeGroups();
+		return super.isMemberOf(group);
+	}
+
+	@Override
+	public void joinGroup(GroupModel group) {
+		materializeGroups();
+		super.joinGroup(group);
+	}
+
+	@Override
+	public void leaveGroup(GroupModel group) {
+		materializeGroups();
+		super.leaveGroup(group);
 	}
 
 	@Override
 	public void setAttribute(String attr, List<String> values) {
+		if (Scim.isWritableAttr(attr) && provider.factory.writeBehind(model, SCIMOutbox.Operation.UPDATE,
+				this.getUsername(), attr, values)) {
+			super.setAttribute(attr, values);
+			return;
+		}
+
 		SimpleHttp.Response resp = this.scim.updateUser(scim, this.getUsername(), attr, values);
 		try {
 			if (resp.getStatus() != HttpStatus.SC_OK &&
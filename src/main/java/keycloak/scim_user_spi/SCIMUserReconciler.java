@@ -0,0 +1,307 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Reconciles the local users of this federation link with the SCIM directory.
+ *
+ * The SCIM /Users list is read page by page, users missing locally are
+ * imported and linked users are updated, in batches of "syncbatchsize".
+ * Then the local users are read page by page and the linked ones are looked
+ * up in SCIM with batched "userName eq" searches, the ones the server
+ * confirms are gone are unlinked or deleted ("reconcileaction") a batch at a
+ * time. Neither side needs a particular order, so the server and database
+ * collations do not matter, and memory stays bounded by the page size.
+ *
+ * Any failure aborts the run, users are only removed once a lookup
+ * succeeded without finding them. The factory then falls back to a full sync.
+ */
+public class SCIMUserReconciler {
+	private static final Logger logger = Logger.getLogger(SCIMUserReconciler.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	enum Action {
+		IMPORT,
+		REMOVE
+	}
+
+	static class Change {
+		final Action action;
+		final String username;
+		final SCIMUser.Resource resource;
+
+		Change(Action action, String username, SCIMUser.Resource resource) {
+			this.action = action;
+			this.username = username;
+			this.resource = resource;
+		}
+	}
+
+	static class LocalUser {
+		final String username;
+		final boolean linked;
+
+		LocalUser(String username, boolean linked) {
+			this.username = username;
+			this.linked = linked;
+		}
+	}
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final String realmId;
+	private final ComponentModel model;
+	private final int pageSize;
+	private final int batchSize;
+	private final boolean deleteStale;
+
+	private final SynchronizationResult result = new SynchronizationResult();
+	private final List<Change> pending = new ArrayList<Change>();
+	private boolean aborted = false;
+
+	/* Remote stream state */
+	private int remoteIndex = 1;
+	private boolean remoteCursorMode = false;
+	private String remoteCursor = "";
+	private boolean remoteDone = false;
+
+	public SCIMUserReconciler(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory,
+			String realmId, ComponentModel model) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+		this.realmId = realmId;
+		this.model = model;
+		this.pageSize = SCIMUserSync.getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		this.batchSize = SCIMUserSync.getIntConfig(model, "syncbatchsize", DEFAULT_BATCH_SIZE);
+		this.deleteStale = "delete".equals(model.getConfig().getFirst("reconcileaction"));
+	}
+
+	public SynchronizationResult reconcile() {
+		logger.infov("Reconciling SCIM users for {0}", model.getName());
+
+		try {
+			remoteCursorMode = loadServiceProviderConfig().isCursorSupported();
+			importRemote();
+			removeStale();
+		} catch (RuntimeException e) {
+			logger.errorv("SCIM reconciliation aborted: {0}", e.getMessage());
+			pending.clear();
+			aborted = true;
+			result.increaseFailed();
+			return result;
+		}
+
+		logger.infov("SCIM reconciliation finished: {0}", result.getStatus());
+		return result;
+	}
+
+	/* True when the last reconcile() stopped on an error */
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/* Imports or updates every SCIM user, in the order the server lists them */
+	void importRemote() {
+		while (!remoteDone) {
+			for (SCIMUser.Resource resource : fetchRemotePage()) {
+				if (resource.getUserName() != null) {
+					queue(new Change(Action.IMPORT, resource.getUserName(), resource));
+				}
+			}
+		}
+		flush();
+	}
+
+	/* Removes the linked local users SCIM no longer has, one local page at a time */
+	void removeStale() {
+		int offset = 0;
+		int removed = 0;
+		List<LocalUser> users;
+		do {
+			users = loadLocalPage(offset);
+			offset += users.size();
+
+			List<String> linked = users.stream().filter(u -> u.linked).map(u -> u.username)
+					.collect(Collectors.toList());
+			Set<String> existing = linked.isEmpty() ? Collections.<String>emptySet() : loadRemoteUsernames(linked);
+			for (String username : linked) {
+				if (!existing.contains(key(username))) {
+					queue(new Change(Action.REMOVE, username, null));
+				}
+			}
+			flush();
+
+			/* Deleted users no longer take up rows before the offset */
+			if (deleteStale) {
+				offset -= result.getRemoved() - removed;
+			}
+			removed = result.getRemoved();
+		} while (users.size() >= pageSize);
+
+		if (removed > 0) {
+			logger.infov("{0} users of {1} are no longer in SCIM", removed, model.getName());
+		}
+	}
+
+	/* Keycloak stores usernames in lower case */
+	private static String key(String username) {
+		return username.toLowerCase();
+	}
+
+	SCIMServiceProviderConfig loadServiceProviderConfig() {
+		try (KeycloakSession session = sessionFactory.create()) {
+			return new Scim(session, model, factory).getServiceProviderConfig();
+		}
+	}
+
+	/* Next page of /Users */
+	SCIMUser loadRemotePage() {
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, model, factory);
+			return remoteCursorMode ? scim.getUsersPage(remoteCursor, pageSize) :
+				scim.getUsersPage(remoteIndex, pageSize);
+		}
+	}
+
+	/* Lower case userNames of the given users SCIM has, throws if that is not known for sure */
+	Set<String> loadRemoteUsernames(List<String> usernames) {
+		try (KeycloakSession session = sessionFactory.create()) {
+			return new HashSet<String>(new Scim(session, model, factory).findUsersByUsername(usernames).keySet());
+		}
+	}
+
+	private List<SCIMUser.Resource> fetchRemotePage() {
+		SCIMUser page = loadRemotePage();
+
+		List<SCIMUser.Resource> resources = page.getResources() == null ?
+				Collections.<SCIMUser.Resource>emptyList() : page.getResources();
+		if (remoteCursorMode) {
+			remoteCursor = page.getNextCursor();
+			remoteDone = resources.isEmpty() || remoteCursor == null || remoteCursor.isEmpty();
+		} else {
+			remoteIndex += resources.size();
+			remoteDone = resources.isEmpty() || page.getTotalResults() == null || remoteIndex > page.getTotalResults();
+		}
+		return resources;
+	}
+
+	/* Local users from the offset on, in database order */
+	List<LocalUser> loadLocalPage(int offset) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(UserModel.SEARCH, "*");
+		params.put(UserModel.INCLUDE_SERVICE_ACCOUNT, Boolean.FALSE.toString());
+
+		return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			return UserStoragePrivateUtil.userLocalStorage(session)
+					.searchForUserStream(realm, params, offset, pageSize)
+					.map(u -> new LocalUser(u.getUsername(), model.getId().equals(u.getFederationLink())))
+					.collect(Collectors.toList());
+		});
+	}
+
+	private void queue(Change change) {
+		pending.add(change);
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		List<Change> batch = new ArrayList<Change>(pending);
+		pending.clear();
+
+		SynchronizationResult batchResult = new SynchronizationResult();
+		try {
+			apply(batch, batchResult);
+		} catch (RuntimeException e) {
+			logger.warnv("SCIM reconciliation batch failed, retrying users individually: {0}", e.getMessage());
+			batchResult = new SynchronizationResult();
+			for (Change change : batch) {
+				try {
+					apply(Collections.singletonList(change), batchResult);
+				} catch (RuntimeException ue) {
+					logger.errorv("Failed to reconcile user {0}: {1}", change.username, ue.getMessage());
+					batchResult.increaseFailed();
+				}
+			}
+		}
+
+		result.add(batchResult);
+	}
+
+	/* Applies the changes in one transaction, any failure rolls back the whole batch */
+	void apply(List<Change> batch, SynchronizationResult batchResult) {
+		SynchronizationResult applied = new SynchronizationResult();
+
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			SCIMUserStorageProvider provider = factory.create(session, model);
+
+			for (Change change : batch) {
+				switch (change.action) {
+				case IMPORT:
+					UserModel local = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, change.username);
+					if (local == null) {
+						provider.createUserInKeycloak(realm, change.username, change.resource);
+						applied.increaseAdded();
+					} else if (!model.getId().equals(local.getFederationLink())) {
+						logger.warnv("User {0} exists but is not linked to {1}, skipping", change.username, model.getName());
+						applied.increaseFailed();
+					} else if (provider.updateUserInKeycloak(realm, local, change.resource)) {
+						applied.increaseUpdated();
+					}
+					break;
+				case REMOVE:
+					UserModel stale = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, change.username);
+					if (stale == null || !model.getId().equals(stale.getFederationLink())) {
+						break;
+					}
+					if (deleteStale) {
+						logger.infov("Deleting user {0} removed from SCIM", change.username);
+						UserStoragePrivateUtil.userLocalStorage(session).removeUser(realm, stale);
+					} else {
+						logger.infov("Unlinking user {0} removed from SCIM", change.username);
+						stale.setFederationLink(null);
+					}
+					if (factory.getUserIndex(model) != null) {
+						factory.getUserIndex(model).remove(change.username);
+					}
+					if (factory.getSearchIndex(model) != null) {
+						factory.getSearchIndex(model).remove(change.username);
+					}
+					applied.increaseRemoved();
+					break;
+				}
+			}
+		});
+
+		batchResult.add(applied);
+	}
+}
@@ -0,0 +1,157 @@
+package keycloak.scim_user_spi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Compact binary form of a SCIM user: userName, id, externalId, given and
+ * family name, the emails, meta.version and meta.lastModified, active, the
+ * groups and the remaining attributes, extension schemas included, as JSON.
+ * Strings are stored as an int length (-1 for null) followed by UTF-8 bytes,
+ * in big-endian order as read by ByteBuffer.
+ */
+final class SCIMUserRecord {
+
+	private SCIMUserRecord() {
+	}
+
+	static byte[] encode(SCIMUser.Resource user) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeString(out, user.getUserName());
+			writeString(out, user.getId());
+			writeString(out, user.getExternalId());
+			writeString(out, user.getName() == null ? null : user.getName().getGivenName());
+			writeString(out, user.getName() == null ? null : user.getName().getFamilyName());
+
+			List<SCIMUser.Resource.Email> emails = user.getEmails() == null ?
+					Collections.<SCIMUser.Resource.Email>emptyList() : user.getEmails();
+			out.writeInt(emails.size());
+			for (SCIMUser.Resource.Email email : emails) {
+				writeString(out, email.getValue());
+				writeString(out, email.getType());
+				writeBoolean(out, email.getPrimary());
+			}
+
+			writeString(out, user.getMeta() == null ? null : user.getMeta().getVersion());
+			writeString(out, user.getMeta() == null ? null : user.getMeta().getLastModified());
+			writeBoolean(out, user.getActive());
+
+			List<SCIMUser.Resource.Group> groups = user.getGroups() == null ?
+					Collections.<SCIMUser.Resource.Group>emptyList() : user.getGroups();
+			out.writeInt(groups.size());
+			for (SCIMUser.Resource.Group group : groups) {
+				writeString(out, group.getDisplay());
+				writeString(out, group.getValue());
+			}
+
+			writeString(out, user.getAdditionalProperties().isEmpty() ? null :
+				JsonSerialization.writeValueAsString(user.getAdditionalProperties()));
+		} catch (IOException e) {
+			/* Cannot happen with an in-memory stream and plain JSON values */
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/* Decodes the record at the buffer position and moves the position past it */
+	static SCIMUser.Resource decode(ByteBuffer buffer) {
+		SCIMUser.Resource user = new SCIMUser.Resource();
+		SCIMUser.Resource.Name name = new SCIMUser.Resource.Name();
+		SCIMUser.Resource.Meta meta = new SCIMUser.Resource.Meta();
+
+		user.setUserName(readString(buffer));
+		user.setId(readString(buffer));
+		user.setExternalId(readString(buffer));
+		name.setGivenName(readString(buffer));
+		name.setFamilyName(readString(buffer));
+		user.setName(name);
+
+		int count = buffer.getInt();
+		List<SCIMUser.Resource.Email> emails = new ArrayList<SCIMUser.Resource.Email>(count);
+		for (int i = 0; i < count; i++) {
+			SCIMUser.Resource.Email email = new SCIMUser.Resource.Email();
+			email.setValue(readString(buffer));
+			email.setType(readString(buffer));
+			email.setPrimary(readBoolean(buffer));
+			emails.add(email);
+		}
+		user.setEmails(emails);
+
+		meta.setVersion(readString(buffer));
+		meta.setLastModified(readString(buffer));
+		user.setMeta(meta);
+
+		Boolean active = readBoolean(buffer);
+		if (active != null) {
+			user.setActive(active);
+		}
+
+		count = buffer.getInt();
+		List<SCIMUser.Resource.Group> groups = new ArrayList<SCIMUser.Resource.Group>(count);
+		for (int i = 0; i < count; i++) {
+			SCIMUser.Resource.Group group = new SCIMUser.Resource.Group();
+			group.setDisplay(readString(buffer));
+			group.setValue(readString(buffer));
+			groups.add(group);
+		}
+		user.setGroups(groups);
+
+		String extensions = readString(buffer);
+		if (extensions != null) {
+			try {
+				Map<String, Object> attributes = JsonSerialization.readValue(extensions,
+						new TypeReference<Map<String, Object>>() {});
+				for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+					user.setAdditionalProperty(attribute.getKey(), attribute.getValue());
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Unreadable attributes of " + user.getUserName(), e);
+			}
+		}
+
+		return user;
+	}
+
+	/* 2 for null */
+	private static void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+		out.writeByte(value == null ? 2 : value ? 1 : 0);
+	}
+
+	private static Boolean readBoolean(ByteBuffer buffer) {
+		byte value = buffer.get();
+		return value == 2 ? null : value == 1;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,300 @@
+package keycloak.scim_user_spi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* In-memory trigram index over userName, given name, family name and email
+ * of the SCIM users of one component, for admin console searches.
+ *
+ * Each user is a document numbered in insertion order. Posting lists are
+ * growable int arrays, sorted since numbers only grow, and intersected by
+ * merging. Candidates are then checked against the stored values, so the
+ * trigrams only have to narrow the search down. Updated and removed users
+ * leave a tombstone, the index is rebuilt once tombstones outnumber live
+ * documents.
+ *
+ * Searches follow the Keycloak syntax: "value" is a prefix search, "*value*"
+ * a substring search, "\"value\"" an exact match and "*" matches everyone.
+ *
+ * The document a page of results stopped at is remembered for the search
+ * and the offset of the next page, so paging through results resumes there
+ * instead of scanning the matches of the previous pages again. Removals
+ * shift offsets and forget these positions, new documents only ever come
+ * after them.
+ */
+public class SCIMUserSearchIndex {
+
+	private static final int GRAM = 3;
+	private static final int MIN_REBUILD = 1024;
+	private static final int MAX_POSITIONS = 256;
+
+	/* Sorted, append-only list of document numbers */
+	private static class Postings {
+		int[] docs = new int[4];
+		int size;
+
+		void add(int doc) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+			}
+			docs[size++] = doc;
+		}
+	}
+
+	private enum Mode {
+		PREFIX,
+		SUBSTRING,
+		EXACT,
+		ALL
+	}
+
+	/* Lower case userName, given name, family name, email, null for removed documents */
+	private final List<String[]> documents = new ArrayList<String[]>();
+	private final List<String> usernames = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+	private final BitSet deleted = new BitSet();
+	private int removed = 0;
+	/* "mode:value:offset" -> first document to look at for that result offset */
+	private final Map<String, Integer> positions = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_POSITIONS;
+		}
+	};
+
+	public synchronized void update(SCIMUser.Resource user) {
+		String username = user.getUserName();
+		if (username == null) {
+			return;
+		}
+		String[] fields = new String[] {
+			lower(username),
+			lower(user.getName() == null ? null : user.getName().getGivenName()),
+			lower(user.getName() == null ? null : user.getName().getFamilyName()),
+			lower(user.getEmails() == null || user.getEmails().isEmpty() ? null : user.getEmails().get(0).getValue())
+		};
+
+		String key = lower(username);
+		Integer previous = ids.get(key);
+		if (previous != null) {
+			if (Arrays.equals(documents.get(previous), fields)) {
+				return;
+			}
+			delete(previous);
+		}
+
+		int doc = documents.size();
+		documents.add(fields);
+		usernames.add(username);
+		ids.put(key, doc);
+		for (String gram : grams(fields)) {
+			postings.computeIfAbsent(gram, g -> new Postings()).add(doc);
+		}
+		if (removed > MIN_REBUILD && removed > ids.size()) {
+			rebuild();
+		}
+	}
+
+	public synchronized void remove(String username) {
+		Integer doc = ids.remove(lower(username));
+		if (doc != null) {
+			delete(doc);
+		}
+	}
+
+	public synchronized void clear() {
+		documents.clear();
+		usernames.clear();
+		ids.clear();
+		postings.clear();
+		deleted.clear();
+		removed = 0;
+		positions.clear();
+	}
+
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/* userNames matching the search, in insertion order */
+	public synchronized List<String> search(String search, int firstResult, int maxResults) {
+		String value = search.trim().toLowerCase();
+		Mode mode;
+		if (value.equals("*") || value.isEmpty()) {
+			mode = Mode.ALL;
+		} else if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+			/* Matched as is, * included */
+			mode = Mode.EXACT;
+			value = value.substring(1, value.length() - 1);
+		} else if (value.startsWith("*")) {
+			mode = Mode.SUBSTRING;
+			value = value.replace("*", "");
+		} else {
+			mode = Mode.PREFIX;
+			value = value.replace("*", "");
+		}
+
+		List<String> results = new ArrayList<String>();
+		String query = mode + ":" + value + ":";
+		Integer resume = positions.get(query + firstResult);
+		int skipped = resume == null ? 0 : firstResult;
+		int from = resume == null ? 0 : resume;
+		Postings candidates = mode == Mode.ALL ? null : candidates(value);
+		int count = candidates == null ? documents.size() : candidates.size;
+		int i = candidates == null ? from : position(candidates, from);
+		int next = from;
+
+		for (; i < count && results.size() < maxResults; i++) {
+			int doc = candidates == null ? i : candidates.docs[i];
+			String[] fields = documents.get(doc);
+			if (deleted.get(doc) || !matches(fields, value, mode)) {
+				continue;
+			}
+			if (skipped < firstResult) {
+				skipped++;
+				continue;
+			}
+			results.add(usernames.get(doc));
+			next = doc + 1;
+		}
+		if (!results.isEmpty() && results.size() == maxResults) {
+			positions.put(query + (firstResult + results.size()), next);
+		}
+		return results;
+	}
+
+	/* Index of the first posting at or after the document */
+	private static int position(Postings postings, int doc) {
+		int i = Arrays.binarySearch(postings.docs, 0, postings.size, doc);
+		return i < 0 ? -i - 1 : i;
+	}
+
+	/* Documents holding every trigram of the value, null when the value is too short to narrow */
+	private Postings candidates(String value) {
+		Set<String> grams = new LinkedHashSet<String>();
+		addGrams(grams, value);
+		if (grams.isEmpty()) {
+			return null;
+		}
+
+		Postings result = null;
+		for (String gram : grams) {
+			Postings list = postings.get(gram);
+			if (list == null) {
+				return new Postings();
+			}
+			result = result == null ? list : intersect(result, list);
+			if (result.size == 0) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	private static Postings intersect(Postings a, Postings b) {
+		Postings result = new Postings();
+		int i = 0;
+		int j = 0;
+		while (i < a.size && j < b.size) {
+			if (a.docs[i] < b.docs[j]) {
+				i++;
+			} else if (a.docs[i] > b.docs[j]) {
+				j++;
+			} else {
+				result.add(a.docs[i]);
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(String[] fields, String value, Mode mode) {
+		if (mode == Mode.ALL) {
+			return true;
+		}
+		for (String field : fields) {
+			if (field == null) {
+				continue;
+			}
+			switch (mode) {
+			case EXACT:
+				if (field.equals(value)) {
+					return true;
+				}
+				break;
+			case SUBSTRING:
+				if (field.contains(value)) {
+					return true;
+				}
+				break;
+			default:
+				if (field.startsWith(value)) {
+					return true;
+				}
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static Set<String> grams(String[] fields) {
+		Set<String> grams = new LinkedHashSet<String>();
+		for (String field : fields) {
+			if (field != null) {
+				addGrams(grams, field);
+			}
+		}
+		return grams;
+	}
+
+	private static void addGrams(Set<String> grams, String value) {
+		for (int i = 0; i + GRAM <= value.length(); i++) {
+			grams.add(value.substring(i, i + GRAM));
+		}
+	}
+
+	private static String lower(String value) {
+		return value == null ? null : value.toLowerCase();
+	}
+
+	private void delete(int doc) {
+		deleted.set(doc);
+		removed++;
+		positions.clear();
+	}
+
+	/* Drop the tombstones and renumber the live documents */
+	private void rebuild() {
+		List<String[]> liveDocuments = new ArrayList<String[]>();
+		List<String> liveUsernames = new ArrayList<String>();
+		for (int doc = 0; doc < documents.size(); doc++) {
+			if (!deleted.get(doc)) {
+				liveDocuments.add(documents.get(doc));
+				liveUsernames.add(usernames.get(doc));
+			}
+		}
+
+		clear();
+		for (int doc = 0; doc < liveDocuments.size(); doc++) {
+			documents.add(liveDocuments.get(doc));
+			usernames.add(liveUsernames.get(doc));
+			ids.put(lower(liveUsernames.get(doc)), doc);
+			for (String gram : grams(liveDocuments.get(doc))) {
+				postings.computeIfAbsent(gram, g -> new Postings()).add(doc);
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+import org.keycloak.component.ComponentModel;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Snapshot of the SCIM directory written by a full sync of a transient
+ * component, so the user cache is usable right after a restart.
+ *
+ * The file in the server data directory holds a header (magic, format,
+ * time the sync started) followed by length-prefixed SCIMUserRecords. It is
+ * memory mapped when loaded, the caller then revalidates the users changed
+ * since the snapshot time with syncSince.
+ */
+public class SCIMUserSnapshot {
+	private static final Logger logger = Logger.getLogger(SCIMUserSnapshot.class);
+
+	private static final int MAGIC = 0x5343494d;
+	private static final int FORMAT = 2;
+
+	private SCIMUserSnapshot() {
+	}
+
+	private static Path path(ComponentModel model) {
+		return SCIMSyncCheckpoint.dataDir().resolve(String.format("scim-snapshot-%s.bin", model.getId()));
+	}
+
+	public static boolean isEnabled(ComponentModel model) {
+		return Boolean.valueOf(model.getConfig().getFirst("transientusers")) &&
+				Boolean.valueOf(model.getConfig().getFirst("cachesnapshot"));
+	}
+
+	/* Writes to a temporary file, the snapshot is only replaced by commit() */
+	public static class Writer {
+		private final Path file;
+		private final Path tmp;
+		private final DataOutputStream out;
+		private int count = 0;
+
+		private Writer(Path file, Date timestamp) throws IOException {
+			this.file = file;
+			this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(timestamp.getTime());
+		}
+
+		public void write(SCIMUser.Resource user) {
+			byte[] record = SCIMUserRecord.encode(user);
+			try {
+				out.writeInt(record.length);
+				out.write(record);
+				count++;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void commit() {
+			try {
+				out.close();
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				logger.infov("Wrote snapshot of {0} SCIM users to {1}", count, file);
+			} catch (IOException e) {
+				logger.warnv("Failed to write SCIM snapshot {0}: {1}", file, e.getMessage());
+				abort();
+			}
+		}
+
+		public void abort() {
+			try {
+				out.close();
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				logger.warnv("Failed to delete SCIM snapshot {0}: {1}", tmp, e.getMessage());
+			}
+		}
+	}
+
+	/* Returns null if the snapshot cannot be written, the sync goes on without it */
+	public static Writer create(ComponentModel model, Date timestamp) {
+		try {
+			return new Writer(path(model), timestamp);
+		} catch (IOException e) {
+			logger.warnv("Cannot create SCIM snapshot for {0}: {1}", model.getName(), e.getMessage());
+			return null;
+		}
+	}
+
+	/* Loads the snapshot into the cache and the indexes if enabled, returns its time or null if there is no usable snapshot */
+	public static Date load(ComponentModel model, SCIMUserCache cache, SCIMUserIndex index,
+			SCIMUserSearchIndex searchIndex) {
+		Path file = path(model);
+		if (!Files.exists(file)) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				logger.warnv("SCIM snapshot {0} is too large to be mapped", file);
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+				logger.warnv("Ignoring SCIM snapshot {0} of an unknown format", file);
+				return null;
+			}
+			Date timestamp = new Date(buffer.getLong());
+
+			int count = 0;
+			while (buffer.hasRemaining()) {
+				int length = buffer.getInt();
+				int next = buffer.position() + length;
+				SCIMUser.Resource user = SCIMUserRecord.decode(buffer);
+				cache.put(user);
+				if (index != null) {
+					index.update(user);
+				}
+				if (searchIndex != null) {
+					searchIndex.update(user);
+				}
+				buffer.position(next);
+				count++;
+			}
+			logger.infov("Loaded {0} SCIM users of {1} from snapshot", count, timestamp);
+			return timestamp;
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.warnv("Ignoring unreadable SCIM snapshot {0}: {1}", file, e.getMessage());
+			return null;
+		}
+	}
+
+	public static void delete(ComponentModel model) {
+		try {
+			Files.deleteIfExists(path(model));
+		} catch (IOException e) {
+			logger.warnv("Failed to delete SCIM snapshot of {0}: {1}", model.getName(), e.getMessage());
+		}
+	}
+}
@@ -27,10 +27,13 @@ import org.keycloak.credential.UserCredentialManager;
 import org.keycloak.models.CredentialValidationOutput;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStoragePrivateUtil;
@@ -46,12 +49,21 @@ import keycloak.scim_user_spi.schemas.SCIMUser;
 import org.keycloak.storage.user.UserQueryProvider;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.http.HttpStatus;
@@ -75,6 +87,15 @@ ImportedUserValidation
 	private static final Logger logger = Logger.getLogger(SCIMUserStorageProvider.class);
 	protected final Set<String> supportedCredentialTypes = new HashSet<>();
 	protected SCIMUserStorageProviderFactory factory;
+	/* Set on users imported at login until their SCIM groups have been joined */
+	public static final String GROUPS_PENDING_ATTR = "scimGroupsPending";
+	/* Set on users added with write-behind until the dispatcher created them in SCIM,
+	 * the journal is per node but the attribute tells every node to keep the user */
+	public static final String CREATE_PENDING_ATTR = "scimCreatePending";
+	/* Hash of the SCIM profile and groups last applied to the user */
+	public static final String FINGERPRINT_ATTR = "scimFingerprint";
+	/* SCIM groups last joined, so only memberships coming from SCIM are ever left */
+	public static final String GROUPS_ATTR = "scimGroups";
 
 	public SCIMUserStorageProvider(KeycloakSession session, ComponentModel model, Scim scim, SCIMUserStorageProviderFactory factory) {
 		this.session = session;
@@ -87,9 +108,42 @@ ImportedUserValidation
 
 	@Override
 	public UserModel getUserByEmail(RealmModel realm, String email) {
+		SCIMUserIndex index = factory.getUserIndex(model);
+		if (index != null) {
+			for (String username : index.getUsernames(SCIMUserIndex.EMAIL, email)) {
+				UserModel user = getUserByUsername(realm, username);
+				/* Entries of users changed elsewhere may be stale */
+				if (user != null && email.equalsIgnoreCase(user.getEmail())) {
+					return user;
+				}
+			}
+		}
+
+		SCIMUser scimuser = scim.getUserByEmail(email);
+		if (scimuser.getTotalResults() == null || scimuser.getTotalResults() == 0 || scimuser.getResources() == null) {
+			return null;
+		}
+		/* Servers may match emails loosely, only a user holding the exact address is returned */
+		for (SCIMUser.Resource resource : scimuser.getResources()) {
+			if (hasEmail(resource, email)) {
+				return getUserByUsername(realm, resource.getUserName());
+			}
+		}
 		return null;
 	}
 
+	private static boolean hasEmail(SCIMUser.Resource resource, String email) {
+		if (resource.getEmails() == null) {
+			return false;
+		}
+		for (SCIMUser.Resource.Email value : resource.getEmails()) {
+			if (value != null && email.equalsIgnoreCase(value.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public UserModel getUserById(RealmModel realm, String id) {
 		StorageId storageId = new StorageId(id);
@@ -106,30 +160,130 @@ ImportedUserValidation
 			username = username.substring(0 , idx);
 		}
 
+		if (isTransient()) {
+			return getTransientUser(realm, username);
+		}
+
 		UserModel user = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm,  username);
 		if (user != null) {
 			logger.info("User already exists in keycloak");
 			return user;
 		} else {
-			return createUserInKeycloak(realm, username);
+			return importUser(realm, username);
 		}
 	}
 
+	protected boolean isTransient() {
+		return Boolean.valueOf(model.getConfig().getFirst("transientusers"));
+	}
+
+	/* Transient mode, the user is served from the SCIM cache and never imported */
+	private UserModel getTransientUser(RealmModel realm, String username) {
+		SCIMUserCache cache = factory.getUserCache(model);
+		SCIMUser.Resource resource = cache.get(username);
+
+		if (resource == null) {
+			SCIMUser scimuser = scim.getUserByUsername(username, Scim.Projection.FULL);
+			if (scimuser.getTotalResults() == 0) {
+				return null;
+			}
+			resource = scimuser.getResources().get(0);
+			cache.put(resource);
+		}
+		return new SCIMTransientUser(session, realm, model, scim, factory, resource);
+	}
+
+	/* Concurrent first logins of the same user are collapsed into a single import.
+	 * The import runs in its own transaction while the per-username lock is held,
+	 * so a waiting thread finds the committed user on its re-check instead of
+	 * issuing a second addUser.
+	 */
+	private UserModel importUser(RealmModel realm, String username) {
+		Lock lock = factory.getImportLocks().get(realm.getId(), username);
+		AtomicBoolean imported = new AtomicBoolean(false);
+		String realmId = realm.getId();
+
+		lock.lock();
+		try {
+			if (UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username) != null) {
+				logger.infov("User {0} imported concurrently", username);
+			} else {
+				/* Fetched through this session so the result is memoized for the caller,
+				 * groups are left to the first materializeGroups() call */
+				SCIMUser scimuser = scim.getUserByUsername(username, Scim.Projection.PROFILE);
+				if (scimuser.getTotalResults() == 0) {
+					return null;
+				}
+				KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+				KeycloakModelUtils.suspendJtaTransaction(sessionFactory, () ->
+					KeycloakModelUtils.runJobInTransaction(sessionFactory, importSession -> {
+						RealmModel importRealm = importSession.realms().getRealm(realmId);
+						SCIMUserStorageProvider provider = factory.create(importSession, model);
+						imported.set(provider.createUserInKeycloak(importRealm, username, scimuser) != null);
+					}));
+				if (!imported.get()) {
+					return null;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		UserModel user = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+		if (user == null) {
+			return null;
+		}
+		return new SCIMUserModelDelegate(this, realm, scim, user, model);
+	}
+
 	protected UserModel createUserInKeycloak(RealmModel realm, String username) {
-		SCIMUser scimuser = scim.getUserByUsername(username);
+		SCIMUser scimuser = scim.getUserByUsername(username, Scim.Projection.PROFILE);
+		return createUserInKeycloak(realm, username, scimuser);
+	}
+
+	/* Login-time import, group membership is materialized on first use */
+	protected UserModel createUserInKeycloak(RealmModel realm, String username, SCIMUser scimuser) {
 		if (scimuser.getTotalResults() == 0) {
 			return null;
 		}
+		UserModel user = addUserInKeycloak(realm, username, scimuser.getResources().get(0));
+		user.setSingleAttribute(GROUPS_PENDING_ATTR, Boolean.TRUE.toString());
+
+		logger.infov("Creating SCIM user {0} in keycloak", username);
+		return new SCIMUserModelDelegate(this, realm, scim, user, model);
+	}
+
+	/* Sync-time import, groups are joined right away */
+	protected UserModel createUserInKeycloak(RealmModel realm, String username, SCIMUser.Resource scimuser) {
+		UserModel user = addUserInKeycloak(realm, username, scimuser);
+		updateGroupsInKeycloak(realm, user, scimuser);
+		user.setSingleAttribute(FINGERPRINT_ATTR, fingerprint(scimuser));
+
+		logger.infov("Creating SCIM user {0} in keycloak", username);
+		return new SCIMUserModelDelegate(this, realm, scim, user, model);
+	}
+
+	private UserModel addUserInKeycloak(RealmModel realm, String username, SCIMUser.Resource scimuser) {
 		UserModel user = UserStoragePrivateUtil.userLocalStorage(session).addUser(realm,  username);
 		user.setEmail(scim.getEmail(scimuser));
 		user.setFirstName(scim.getFirstName(scimuser));
 		user.setLastName(scim.getLastName(scimuser));
 		user.setFederationLink(model.getId());
 		user.setEnabled(scim.getActive(scimuser));
+		return user;
+	}
 
-		for (String name : scim.getGroupsList(scimuser)) {
-			Stream<GroupModel> groupsStream = session.groups().searchForGroupByNameStream(realm, name, false, null, null);
-			GroupModel group = groupsStream.findFirst().orElse(null);
+	/* Join the SCIM groups the user is not in yet and leave the ones removed in SCIM */
+	protected void updateGroupsInKeycloak(RealmModel realm, UserModel user, SCIMUser.Resource scimuser) {
+		Set<String> previous = user.getAttributeStream(GROUPS_ATTR).collect(Collectors.toSet());
+		List<String> current = scim.getGroupsList(scimuser).stream().sorted().collect(Collectors.toList());
+
+		for (String name : current) {
+			if (previous.contains(name)) {
+				continue;
+			}
+			/* Top-level groups only, as created below, a search would also return the parents of subgroups */
+			GroupModel group = session.groups().getGroupByName(realm, null, name);
 
 			if (group == null) {
 				logger.infov("No group found, creating group: {0}", name);
@@ -138,13 +292,85 @@ ImportedUserValidation
 			user.joinGroup(group);
 		}
 
-		logger.infov("Creating SCIM user {0} in keycloak", username);
-		return new SCIMUserModelDelegate(scim, user, model);
+		for (String name : previous) {
+			if (current.contains(name)) {
+				continue;
+			}
+			GroupModel group = session.groups().getGroupByName(realm, null, name);
+			if (group != null && user.isMemberOf(group)) {
+				logger.infov("Removing {0} from group {1}", user.getUsername(), name);
+				user.leaveGroup(group);
+			}
+		}
+
+		user.setAttribute(GROUPS_ATTR, current);
+	}
+
+	/* SHA-256 over the profile fields and the sorted group names */
+	protected String fingerprint(SCIMUser.Resource scimuser) {
+		StringBuilder content = new StringBuilder();
+		content.append(scim.getFirstName(scimuser)).append('\n');
+		content.append(scim.getLastName(scimuser)).append('\n');
+		content.append(scim.getEmail(scimuser)).append('\n');
+		scim.getGroupsList(scimuser).stream().sorted().forEach(name -> content.append(name).append('\n'));
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(content.toString().getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(hash);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* Join the SCIM groups of a user imported at login, once. The joins are
+	 * committed in their own transaction under the import lock so concurrent
+	 * sessions of the same user never add the same membership twice.
+	 */
+	protected void materializeGroups(RealmModel realm, UserModel user) {
+		if (user.getFirstAttribute(GROUPS_PENDING_ATTR) == null) {
+			return;
+		}
+
+		String realmId = realm.getId();
+		String userId = user.getId();
+		Lock lock = factory.getImportLocks().get(realmId, user.getUsername());
+
+		lock.lock();
+		try {
+			SCIMUser scimuser = scim.getUserByUsername(user.getUsername(), Scim.Projection.FULL);
+			KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+			KeycloakModelUtils.suspendJtaTransaction(sessionFactory, () ->
+				KeycloakModelUtils.runJobInTransaction(sessionFactory, groupsSession -> {
+					RealmModel groupsRealm = groupsSession.realms().getRealm(realmId);
+					UserModel local = UserStoragePrivateUtil.userLocalStorage(groupsSession).getUserById(groupsRealm, userId);
+					if (local == null || local.getFirstAttribute(GROUPS_PENDING_ATTR) == null) {
+						/* Materialized concurrently */
+						return;
+					}
+					if (scimuser.getTotalResults() > 0) {
+						SCIMUserStorageProvider provider = factory.create(groupsSession, model);
+						SCIMUser.Resource resource = scimuser.getResources().get(0);
+						provider.updateGroupsInKeycloak(groupsRealm, local, resource);
+						local.setSingleAttribute(FINGERPRINT_ATTR, provider.fingerprint(resource));
+					}
+					local.removeAttribute(GROUPS_PENDING_ATTR);
+				}));
+		} finally {
+			lock.unlock();
+		}
+
+		logger.infov("Materialized SCIM groups of {0}", user.getUsername());
+		/* Cached group ids were loaded before the joins */
+		UserCache cache = session.getProvider(UserCache.class);
+		if (cache != null) {
+			cache.evict(realm, user);
+		}
 	}
 
 	@Override
 	public void close() {
-
+		scim.close();
 	}
 
 	public Set<String> getSupportedCredentialTypes() {
@@ -184,22 +410,65 @@ ImportedUserValidation
 	public UserModel validate(RealmModel realm, UserModel local) {
 		Scim scim = this.scim;
 
-		SCIMUser scimuser = scim.getUserByUsername(local.getUsername());
+		/* SCIM is behind the local user until its journaled writes are sent */
+		if (factory.hasPendingWrites(model, local.getUsername())) {
+			return new SCIMUserModelDelegate(this, realm, this.scim, local, model);
+		}
+
+		/* Groups of a user still pending materialization are joined by the returned delegate on first access */
+		boolean groupsPending = local.getFirstAttribute(GROUPS_PENDING_ATTR) != null;
+		SCIMUser scimuser = scim.getUserByUsername(local.getUsername(),
+				groupsPending ? Scim.Projection.PROFILE : Scim.Projection.FULL);
+		if (scimuser.getResources() == null || scimuser.getResources().isEmpty()) {
+			if (local.getFirstAttribute(CREATE_PENDING_ATTR) != null) {
+				/* Journaled on another node, not created in SCIM yet */
+				return new SCIMUserModelDelegate(this, realm, this.scim, local, model);
+			}
+			return null;
+		}
+		updateUserInKeycloak(realm, local, scimuser.getResources().get(0));
+
+		return new SCIMUserModelDelegate(this, realm, this.scim, local, model);
+	}
+
+	/* Copy the SCIM profile and groups onto an imported user, returns true if anything changed.
+	 * Nothing is written while the fingerprint of the SCIM resource is unchanged.
+	 */
+	protected boolean updateUserInKeycloak(RealmModel realm, UserModel local, SCIMUser.Resource scimuser) {
+		boolean groupsPending = local.getFirstAttribute(GROUPS_PENDING_ATTR) != null;
+		String fingerprint = null;
+
+		if (!groupsPending) {
+			fingerprint = fingerprint(scimuser);
+			if (fingerprint.equals(local.getFirstAttribute(FINGERPRINT_ATTR))) {
+				return false;
+			}
+		}
+
 		String fname = scim.getFirstName(scimuser);
 		String lname = scim.getLastName(scimuser);
 		String email = scim.getEmail(scimuser);
+		boolean changed = false;
 
-		if (!local.getFirstName().equals(fname)) {
+		if (!Objects.equals(local.getFirstName(), fname)) {
 			local.setFirstName(fname);
+			changed = true;
 		}
-		if (!local.getLastName().equals(lname)) {
+		if (!Objects.equals(local.getLastName(), lname)) {
 			local.setLastName(lname);
+			changed = true;
 		}
-		if (!local.getEmail().equals(email)) {
+		if (!Objects.equals(local.getEmail(), email)) {
 			local.setEmail(email);
+			changed = true;
+		}
+		if (!groupsPending) {
+			updateGroupsInKeycloak(realm, local, scimuser);
+			local.setSingleAttribute(FINGERPRINT_ATTR, fingerprint);
+			changed = true;
 		}
 
-		return new SCIMUserModelDelegate(this.scim, local, model);
+		return changed;
 	}
 
 	// UserRegistrationProvider methods
@@ -207,6 +476,18 @@ ImportedUserValidation
 	public UserModel addUser(RealmModel realm, String username) {
 		Scim scim = this.scim;
 
+		if (factory.writeBehind(model, SCIMOutbox.Operation.CREATE, username, null, null)) {
+			/* Served locally until the dispatcher created the SCIM user */
+			SCIMUser.Resource resource = scim.setupUser(username);
+			if (isTransient()) {
+				factory.getUserCache(model).put(resource);
+				return new SCIMTransientUser(session, realm, model, scim, factory, resource);
+			}
+			UserModel user = createUserInKeycloak(realm, username, resource);
+			user.setSingleAttribute(CREATE_PENDING_ATTR, String.valueOf(System.currentTimeMillis()));
+			return user;
+		}
+
 		SimpleHttp.Response resp = scim.createUser(username);
 
 		try {
@@ -223,6 +504,10 @@ ImportedUserValidation
 			throw new RuntimeException(e);
 		}
 
+		if (isTransient()) {
+			factory.getUserCache(model).remove(username);
+			return getTransientUser(realm, username);
+		}
 		return createUserInKeycloak(realm, username);
 	}
 
@@ -231,7 +516,19 @@ ImportedUserValidation
 		logger.infov("Removing user: {0}", user.getUsername());
 		Scim scim = this.scim;
 
+		if (factory.writeBehind(model, SCIMOutbox.Operation.DELETE, user.getUsername(), null, null)) {
+			factory.getUserCache(model).remove(user.getUsername());
+			if (factory.getUserIndex(model) != null) {
+				factory.getUserIndex(model).remove(user.getUsername());
+			}
+			if (factory.getSearchIndex(model) != null) {
+				factory.getSearchIndex(model).remove(user.getUsername());
+			}
+			return true;
+		}
+
 		SimpleHttp.Response resp = scim.deleteUser(user.getUsername());
+		factory.getUserCache(model).remove(user.getUsername());
 		Boolean status = false;
 		try {
 			status = resp.getStatus() == HttpStatus.SC_NO_CONTENT;
@@ -248,6 +545,14 @@ ImportedUserValidation
 		List<UserModel> users = new LinkedList<>();
 		Scim scim = this.scim;
 
+		if (isTransient()) {
+			UserModel user = getTransientUser(realm, search);
+			if (user != null) {
+				users.add(user);
+			}
+			return users.stream();
+		}
+
 		SCIMUser scimuser = scim.getUserByUsername(search);
 		if (scimuser.getTotalResults() > 0) {
 			logger.info("User found by username!");
@@ -264,6 +569,32 @@ ImportedUserValidation
 		return users.stream();
 	}
 
+	/* Prefix and substring search over the local index, only enabled for transient users so every match is
+	 * served by this provider.
+	 */
+	private Stream<UserModel> searchIndexed(RealmModel realm, SCIMUserSearchIndex searchIndex, String search,
+			Integer firstResult, Integer maxResults) {
+		int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+		int max = maxResults == null || maxResults < 0 ? Integer.MAX_VALUE : maxResults;
+
+		List<String> usernames = searchIndex.search(search, first, max);
+		prefetch(usernames);
+
+		return usernames.stream().map(username -> getUserByUsername(realm, username)).filter(Objects::nonNull);
+	}
+
+	/* Resolve the users missing locally in a few batch searches instead of one search each */
+	private void prefetch(Collection<String> usernames) {
+		SCIMUserCache cache = isTransient() ? factory.getUserCache(model) : null;
+		List<String> missing = usernames.stream()
+				.filter(username -> cache == null || cache.get(username) == null)
+				.collect(Collectors.toList());
+
+		if (missing.size() > 1) {
+			scim.getUsersByUsername(missing);
+		}
+	}
+
 	@Override
 	public Stream<UserModel> getGroupMembersStream(RealmModel arg0, GroupModel arg1, Integer arg2, Integer arg3) {
 		return Stream.empty();
@@ -273,23 +604,45 @@ ImportedUserValidation
 	public int getUsersCount(RealmModel realm) {
 		Scim scim = this.scim;
 
-		SCIMUser user = null;
-		SimpleHttp.Response response;
-		try {
-			response = scim.clientRequest("/Users", "GET", null);
-			user = response.asJson(SCIMUser.class);
-			response.close();
-		} catch (Exception e) {
-			logger.errorv("Error: {0}", e.getMessage());
-			throw new RuntimeException(e);
-		}
-
-		return user.getTotalResults();
+		return scim.getUsersCount();
 	}
 
 	@Override
 	public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-		return Stream.empty();
+		SCIMUserIndex index = factory.getUserIndex(model);
+		Set<String> usernames = index == null ? new HashSet<String>() : index.getUsernames(attrName, attrValue);
+
+		if (usernames.isEmpty()) {
+			/* Only attributes with a known SCIM counterpart are searched */
+			String attribute;
+			if (SCIMUserIndex.EMAIL.equals(attrName)) {
+				attribute = "emails.value";
+			} else if (SCIMUserIndex.EXTERNAL_ID.equals(attrName) || (index != null && index.isIndexed(attrName))) {
+				attribute = attrName;
+			} else {
+				return Stream.empty();
+			}
+
+			SCIMUser scimusers = scim.getUsersByAttr(attribute, attrValue);
+			if (scimusers.getResources() == null) {
+				return Stream.empty();
+			}
+			usernames = scimusers.getResources().stream().map(SCIMUser.Resource::getUserName).collect(Collectors.toSet());
+		}
+
+		if (!isTransient()) {
+			Set<String> imported = usernames;
+			usernames = imported.stream()
+					.filter(username -> UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username) == null)
+					.collect(Collectors.toSet());
+			imported.removeAll(usernames);
+			prefetch(usernames);
+			usernames.addAll(imported);
+		} else {
+			prefetch(usernames);
+		}
+
+		return usernames.stream().map(username -> getUserByUsername(realm, username)).filter(Objects::nonNull);
 	}
 
 	@Override
@@ -298,6 +651,11 @@ ImportedUserValidation
 		String search = params.get(UserModel.SEARCH);
 		/* only supports searching by username */
 		if (search == null) return Stream.empty();
+
+		SCIMUserSearchIndex searchIndex = factory.getSearchIndex(model);
+		if (searchIndex != null) {
+			return searchIndexed(realm, searchIndex, search, firstResult, maxResults);
+		}
 		return performSearch(realm, search);
 	}
 
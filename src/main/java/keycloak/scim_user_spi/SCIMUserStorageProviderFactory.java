@@ -18,36 +18,100 @@
 package keycloak.scim_user_spi;
 
 import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.broker.provider.util.SimpleHttp;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.component.ComponentValidationException;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import keycloak.scim_user_spi.authenticator.SCIMAuthenticator;
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * @author <a href="mailto:jstephen@redhat.com">Justin Stephenson</a>
  * @version $Revision: 1 $
  */
-public class SCIMUserStorageProviderFactory implements UserStorageProviderFactory<SCIMUserStorageProvider> {
+public class SCIMUserStorageProviderFactory implements UserStorageProviderFactory<SCIMUserStorageProvider>,
+ImportSynchronization {
 
 	private static final Logger logger = Logger.getLogger(SCIMUserStorageProviderFactory.class);
 	public static final String PROVIDER_NAME = "scim";
+	private static final int DEFAULT_ASYNC_THREADS = 32;
+	private static final int DEFAULT_CACHE_LIFESPAN = 300;
+	private static final int DEFAULT_OFFHEAP_SIZE = 256;
+	/* A direct buffer is indexed by int */
+	private static final int MAX_OFFHEAP_SIZE = 2047;
 	protected static final List<String> PROVIDERS = new LinkedList<>();
+	protected static final List<String> RECONCILE_ACTIONS = new LinkedList<>();
+	protected static final List<String> WARMUP_MODES = new LinkedList<>();
+	protected static final List<String> CACHE_BACKENDS = new LinkedList<>();
+	protected static final List<String> AUTH_MODES = new LinkedList<>();
 	protected static final List<ProviderConfigProperty> configMetadata;
 
+	private final SCIMRequestCoalescer requestCoalescer = new SCIMRequestCoalescer();
+	private final SCIMImportLocks importLocks = new SCIMImportLocks();
+	private final Map<String, SCIMServiceProviderConfig> serviceProviderConfigs = new ConcurrentHashMap<>();
+	private final Map<String, SCIMUserCache> userCaches = new ConcurrentHashMap<>();
+	private final Map<String, SCIMUserIndex> userIndexes = new ConcurrentHashMap<>();
+	private final Map<String, SCIMUserSearchIndex> searchIndexes = new ConcurrentHashMap<>();
+	private ExecutorService asyncExecutor;
+	private SCIMSyncScheduler syncScheduler;
+	private SCIMCacheWarmer cacheWarmer;
+	private final Map<String, SCIMOutbox> outboxes = new ConcurrentHashMap<>();
+	private SCIMOutboxDispatcher outboxDispatcher;
+	private SCIMUserExporter userExporter;
+	private final Map<String, SCIMTokenManager> tokenManagers = new ConcurrentHashMap<>();
+	private final Map<String, SCIMAdminSession> adminSessions = new ConcurrentHashMap<>();
+	private ScheduledExecutorService authRefresher;
+
 	static {
 		PROVIDERS.add("ipa");
 		PROVIDERS.add("ad");
 		PROVIDERS.add("ldap");
 
+		RECONCILE_ACTIONS.add("unlink");
+		RECONCILE_ACTIONS.add("delete");
+
+		WARMUP_MODES.add("off");
+		WARMUP_MODES.add("recent");
+		WARMUP_MODES.add("all");
+
+		CACHE_BACKENDS.add("heap");
+		CACHE_BACKENDS.add("offheap");
+
+		AUTH_MODES.add(SCIMTokenManager.MODE_SESSION);
+		AUTH_MODES.add(SCIMTokenManager.MODE_CLIENT_CREDENTIALS);
+		AUTH_MODES.add(SCIMTokenManager.MODE_TOKEN);
+
 		configMetadata = ProviderConfigurationBuilder.create()
 				/* SCIMv2 server url*/
 				.property().name("scimurl")
@@ -67,6 +131,46 @@ public class SCIMUserStorageProviderFactory implements UserStorageProviderFactor
 				.label("Login password")
 				.helpText("password to authenticate through the login page")
 				.add()
+				.property().name("sessionkeepalive")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Session keep-alive")
+				.helpText("Seconds the login session may stay idle before it is kept alive in the background, "
+						+ "0 to disable")
+				.defaultValue("300")
+				.add()
+				.property().name("authmode")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.options(AUTH_MODES)
+				.label("Authentication mode")
+				.helpText("Log in through the login page (session), or send a bearer token obtained with "
+						+ "OAuth2 client credentials (clientcredentials) or configured below (token)")
+				.defaultValue(SCIMTokenManager.MODE_SESSION)
+				.add()
+				.property().name("tokenurl")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Token endpoint")
+				.helpText("OAuth2 token endpoint URL, for client credentials")
+				.add()
+				.property().name("clientid")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Client ID")
+				.helpText("OAuth2 client ID, for client credentials")
+				.add()
+				.property().name("clientsecret")
+				.type(ProviderConfigProperty.PASSWORD)
+				.label("Client secret")
+				.helpText("OAuth2 client secret, for client credentials")
+				.add()
+				.property().name("tokenscope")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Token scope")
+				.helpText("Scope requested with client credentials, optional")
+				.add()
+				.property().name("apitoken")
+				.type(ProviderConfigProperty.PASSWORD)
+				.label("API token")
+				.helpText("Static bearer token, for the token mode")
+				.add()
 				/* Add Integration domain option */
 				.property().name("addintgdomain")
 				.type(ProviderConfigProperty.BOOLEAN_TYPE)
@@ -136,6 +240,152 @@ public class SCIMUserStorageProviderFactory implements UserStorageProviderFactor
 				.label("Keycloak Hostname")
 				.helpText("Fully qualified hostname of the keycloak host")
 				.add()
+				/* User synchronization */
+				.property().name("syncpagesize")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Sync page size")
+				.helpText("Number of SCIM users requested per page during synchronization")
+				.defaultValue("100")
+				.add()
+				.property().name("syncworkers")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Sync workers")
+				.helpText("Number of pages fetched in parallel during synchronization")
+				.defaultValue("4")
+				.add()
+				.property().name("syncbatchsize")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Sync batch size")
+				.helpText("Number of users imported per transaction during synchronization")
+				.defaultValue("100")
+				.add()
+				.property().name("reconcile")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Reconcile on full sync")
+				.helpText("Full sync also removes local users no longer present in SCIM")
+				.add()
+				.property().name("reconcileaction")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.options(RECONCILE_ACTIONS)
+				.label("Reconcile action")
+				.helpText("Unlink or delete local users removed from SCIM")
+				.defaultValue("unlink")
+				.add()
+				.property().name("adaptivesync")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Adaptive changed users sync")
+				.helpText("Periodically sync changed users with an interval adjusted to the observed "
+						+ "change rate, use instead of the fixed changed users sync period")
+				.add()
+				.property().name("syncminperiod")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Adaptive sync minimum period")
+				.helpText("Shortest interval between changed users syncs, in seconds")
+				.defaultValue("60")
+				.add()
+				.property().name("syncmaxperiod")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Adaptive sync maximum period")
+				.helpText("Longest interval between changed users syncs, in seconds")
+				.defaultValue("3600")
+				.add()
+				/* Transient users */
+				.property().name("transientusers")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Transient users")
+				.helpText("Serve SCIM users from an in-memory cache instead of importing them into "
+						+ "the Keycloak database, sync refreshes the cache")
+				.add()
+				.property().name("cachelifespan")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Cache lifespan")
+				.helpText("Seconds a SCIM user stays cached in transient mode")
+				.defaultValue("300")
+				.add()
+				.property().name("cachebackend")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.options(CACHE_BACKENDS)
+				.label("Cache backend")
+				.helpText("Keep cached users as objects on the heap, or as compact records in "
+						+ "off-heap memory for large directories")
+				.defaultValue("heap")
+				.add()
+				.property().name("cacheoffheapsize")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Off-heap cache size")
+				.helpText("Off-heap memory reserved for cached users, in MB (at most 2047)")
+				.defaultValue("256")
+				.add()
+				.property().name("cachewarmup")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.options(WARMUP_MODES)
+				.label("Cache warm-up")
+				.helpText("Prefetch SCIM users into the transient users cache at startup and when "
+						+ "saving the provider: the most recently modified ones, or the whole directory")
+				.defaultValue("off")
+				.add()
+				.property().name("cachewarmupsize")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Cache warm-up size")
+				.helpText("Maximum number of users prefetched by the cache warm-up")
+				.defaultValue("10000")
+				.add()
+				.property().name("userindex")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Local user indexes")
+				.helpText("Index fetched SCIM users by email, externalId and the indexed attributes, "
+						+ "lookups by email or attribute are answered locally when possible")
+				.add()
+				.property().name("indexattributes")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Indexed attributes")
+				.helpText("Comma separated list of additional SCIM attributes to index, extension "
+						+ "attributes as <schema urn>:<attribute>")
+				.add()
+				.property().name("searchindex")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Local search index")
+				.helpText("Index the username, names and email of synced SCIM users for prefix and "
+						+ "substring searches in the admin console, run a full sync to fill it. "
+						+ "Only used with transient users")
+				.add()
+				.property().name("cachesnapshot")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Directory snapshot")
+				.helpText("Full syncs of transient users write the directory to a local file, loaded "
+						+ "into the cache at startup before syncing the users changed since")
+				.add()
+				.property().name("seedfile")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Seed file")
+				.helpText("Path of an export of the SCIM users on the Keycloak server, a ListResponse "
+						+ "or one user per line in a .ndjson file. The next full sync imports it instead of "
+						+ "fetching every user, then syncs the users changed since")
+				.add()
+				.property().name("writebehind")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Write-behind")
+				.helpText("Journal created, deleted and modified users to a local file and send them "
+						+ "to SCIM in the background, retrying while the server is unavailable")
+				.add()
+				.property().name("exportlocalusers")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.label("Export local users")
+				.helpText("Create the local users of the realm in SCIM, in the background once the "
+						+ "provider is saved. Disable and enable again to start over")
+				.add()
+				.property().name("exportworkers")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Export workers")
+				.helpText("Number of concurrent requests sent by the export of local users")
+				.defaultValue("4")
+				.add()
+				.property().name("exportrate")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.label("Export rate")
+				.helpText("Maximum number of users exported per second, 0 for no limit")
+				.defaultValue("0")
+				.add()
 				.build();
 	}
 
@@ -147,7 +397,9 @@ public class SCIMUserStorageProviderFactory implements UserStorageProviderFactor
 	@Override
 	public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config)
 			throws ComponentValidationException {
-		Scim scim = new Scim(session, config);
+		/* Check the submitted credentials with a token or session of their own,
+		 * requests keep using the saved ones meanwhile */
+		Scim scim = new Scim(session, config, this, true);
 
 		SimpleHttp.Response response;
 
@@ -172,21 +424,422 @@ public class SCIMUserStorageProviderFactory implements UserStorageProviderFactor
 		return PROVIDER_NAME;
 	}
 
+	@Override
+	public void init(Config.Scope config) {
+		asyncExecutor = createAsyncExecutor(config.getInt("asyncThreads", DEFAULT_ASYNC_THREADS));
+		authRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "scim-auth-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory sessionFactory) {
+		syncScheduler = new SCIMSyncScheduler(this, sessionFactory);
+		cacheWarmer = new SCIMCacheWarmer(this, sessionFactory);
+		outboxDispatcher = new SCIMOutboxDispatcher(this, sessionFactory);
+		userExporter = new SCIMUserExporter(this, sessionFactory);
+
+		/* Components can only be read once the database is migrated */
+		sessionFactory.register(event -> {
+			if (event instanceof PostMigrationEvent) {
+				KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+					session.getProvider(ClusterProvider.class).registerListener(SCIMComponentEvent.EVENT_KEY,
+							clusterEvent -> componentChanged(sessionFactory, (SCIMComponentEvent) clusterEvent));
+					session.realms().getRealmsStream().forEach(realm ->
+						realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+							.filter(component -> PROVIDER_NAME.equals(component.getProviderId()))
+							.forEach(component -> {
+								syncScheduler.schedule(new UserStorageProviderModel(component));
+								cacheWarmer.warmUp(component);
+								startAuth(sessionFactory, component);
+								/* Resume an interrupted export and the writes journaled before the restart */
+								userExporter.start(component, false);
+								if (SCIMOutbox.isEnabled(component) || SCIMOutbox.exists(component)) {
+									outboxDispatcher.wakeUp(openOutbox(component));
+								}
+							}));
+				});
+			}
+		});
+	}
+
+	/* Another node created, saved or removed a component */
+	private void componentChanged(KeycloakSessionFactory sessionFactory, SCIMComponentEvent event) {
+		if (event.isRemoved()) {
+			ComponentModel removed = new ComponentModel();
+			removed.setId(event.getComponentId());
+			forget(removed);
+			return;
+		}
+
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(event.getRealmId());
+			ComponentModel component = realm == null ? null : realm.getComponent(event.getComponentId());
+			if (component != null) {
+				logger.infov("SCIM provider {0} changed on another node, refreshing", component.getName());
+				refresh(sessionFactory, null, component);
+			}
+		});
+	}
+
+	/* Tell the other nodes once the change is committed, so they read the new configuration */
+	private void notifyCluster(KeycloakSession session, RealmModel realm, ComponentModel model, boolean removed) {
+		ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+		SCIMComponentEvent event = new SCIMComponentEvent(realm.getId(), model.getId(), removed);
+		session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+			@Override
+			protected void commitImpl() {
+				cluster.notify(SCIMComponentEvent.EVENT_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+			}
+
+			@Override
+			protected void rollbackImpl() {
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+		}
+		if (syncScheduler != null) {
+			syncScheduler.close();
+		}
+		if (cacheWarmer != null) {
+			cacheWarmer.close();
+		}
+		if (outboxDispatcher != null) {
+			outboxDispatcher.close();
+		}
+		if (userExporter != null) {
+			userExporter.close();
+		}
+		tokenManagers.values().forEach(SCIMTokenManager::close);
+		tokenManagers.clear();
+		adminSessions.values().forEach(SCIMAdminSession::close);
+		adminSessions.clear();
+		if (authRefresher != null) {
+			authRefresher.shutdownNow();
+		}
+		outboxes.values().forEach(SCIMOutbox::close);
+		outboxes.clear();
+	}
+
+	@Override
+	public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+		syncScheduler.schedule(new UserStorageProviderModel(model));
+		cacheWarmer.warmUp(model);
+		userExporter.start(model, true);
+		startAuth(session.getKeycloakSessionFactory(), model);
+		notifyCluster(session, realm, model, false);
+	}
+
+	@Override
+	public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+		if (onlyLastSyncChanged(oldModel, newModel)) {
+			/* A sync stored its watermark, nothing to refresh */
+			return;
+		}
+		refresh(session.getKeycloakSessionFactory(), oldModel, newModel);
+		notifyCluster(session, realm, newModel, false);
+	}
+
+	static boolean onlyLastSyncChanged(ComponentModel oldModel, ComponentModel newModel) {
+		MultivaluedHashMap<String, String> oldConfig = new MultivaluedHashMap<>(oldModel.getConfig());
+		MultivaluedHashMap<String, String> newConfig = new MultivaluedHashMap<>(newModel.getConfig());
+		oldConfig.remove(UserStorageProviderModel.LAST_SYNC);
+		newConfig.remove(UserStorageProviderModel.LAST_SYNC);
+		return oldConfig.equals(newConfig) && Objects.equals(oldModel.getName(), newModel.getName());
+	}
+
+	/* Apply a new configuration to the state this node keeps for the component,
+	 * oldModel is null when the change was made on another node.
+	 */
+	private void refresh(KeycloakSessionFactory sessionFactory, ComponentModel oldModel, ComponentModel newModel) {
+		/* The server URL may have changed */
+		serviceProviderConfigs.remove(newModel.getId());
+		SCIMUserCache previous = userCaches.remove(newModel.getId());
+		List<String> cached = previous == null ? Collections.<String>emptyList() : previous.usernames();
+		if (previous instanceof SCIMOffHeapUserCache && isOffHeap(newModel) &&
+				((SCIMOffHeapUserCache) previous).hasSettings(cacheLifespan(newModel), offHeapSize(newModel))) {
+			/* Allocating the direct buffer again would hold both until the GC frees the old one */
+			previous.clear();
+			userCaches.putIfAbsent(newModel.getId(), previous);
+		}
+		userIndexes.remove(newModel.getId());
+		searchIndexes.remove(newModel.getId());
+		syncScheduler.schedule(new UserStorageProviderModel(newModel));
+		cacheWarmer.warmUp(newModel, cached);
+		userExporter.start(newModel, oldModel != null && !SCIMUserExporter.isEnabled(oldModel));
+		closeAuth(newModel.getId());
+		startAuth(sessionFactory, newModel);
+		/* Writes journaled before are still sent, with the new settings */
+		SCIMOutbox outbox = outboxes.get(newModel.getId());
+		if (outbox != null) {
+			outbox.setModel(newModel);
+			outboxDispatcher.wakeUp(outbox);
+		}
+	}
+
+	/* One virtual thread per request on Java 21+, otherwise a bounded pool of
+	 * daemon threads. Looked up reflectively so the plugin still builds and runs on JDKs before 21.
+	 */
+	private static ExecutorService createAsyncExecutor(int threads) {
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			logger.info("Using virtual threads for asynchronous SCIM requests");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.infov("Virtual threads unavailable, using {0} threads for asynchronous SCIM requests", threads);
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "scim-async-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
 	@Override
 	public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel config) {
 		logger.info("PreRemove");
-		Scim scim = new Scim(session, config);
+		forget(config);
+		SCIMUserExporter.delete(realm, config);
+		SCIMSeedFile.delete(realm, config);
+		notifyCluster(session, realm, config, true);
+		Scim scim = new Scim(session, config, this);
 
 		Boolean result = scim.domainsRemove();
 		logger.infov("Delete intgDomains Result is {0}", result);
 	}
 
+	/* Drop what this node keeps for a removed component */
+	private void forget(ComponentModel config) {
+		syncScheduler.cancel(config.getId());
+		cacheWarmer.cancel(config.getId());
+		SCIMUserSnapshot.delete(config);
+		outboxDispatcher.cancel(config.getId());
+		SCIMOutbox outbox = outboxes.remove(config.getId());
+		if (outbox != null) {
+			if (!outbox.isEmpty()) {
+				logger.warnv("Discarding {0} SCIM writes not sent yet", outbox.size());
+			}
+			outbox.close();
+		}
+		SCIMOutbox.delete(config);
+		userExporter.cancel(config.getId());
+		closeAuth(config.getId());
+		serviceProviderConfigs.remove(config.getId());
+		userCaches.remove(config.getId());
+		userIndexes.remove(config.getId());
+		searchIndexes.remove(config.getId());
+	}
+
 	@Override
 	public SCIMUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-		Scim scim = new Scim(session, model);
+		Scim scim = new Scim(session, model, this);
 		return new SCIMUserStorageProvider(session, model, scim, this);
 	}
 
+	protected SCIMRequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	@Override
+	public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
+			UserStorageProviderModel model) {
+		/* Transient users have no local copy to reconcile */
+		if (Boolean.valueOf(model.getConfig().getFirst("reconcile")) &&
+				!Boolean.valueOf(model.getConfig().getFirst("transientusers"))) {
+			SCIMUserReconciler reconciler = new SCIMUserReconciler(this, sessionFactory, realmId, model);
+			SynchronizationResult result = reconciler.reconcile();
+			if (!reconciler.isAborted()) {
+				return result;
+			}
+			logger.warnv("SCIM reconciliation of {0} aborted, running a full sync instead", model.getName());
+		}
+		return new SCIMUserSync(this, sessionFactory, realmId, model).sync();
+	}
+
+	@Override
+	public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+			UserStorageProviderModel model) {
+		return new SCIMUserSync(this, sessionFactory, realmId, model).syncSince(lastSync);
+	}
+
+	protected Map<String, SCIMServiceProviderConfig> getServiceProviderConfigs() {
+		return serviceProviderConfigs;
+	}
+
+	protected ExecutorService getAsyncExecutor() {
+		return asyncExecutor;
+	}
+
+	protected SCIMUserCache getUserCache(ComponentModel model) {
+		return userCaches.computeIfAbsent(model.getId(), id -> {
+			if (isOffHeap(model)) {
+				return new SCIMOffHeapUserCache(cacheLifespan(model), offHeapSize(model));
+			}
+			return new SCIMHeapUserCache(cacheLifespan(model));
+		});
+	}
+
+	private static boolean isOffHeap(ComponentModel model) {
+		return "offheap".equals(model.getConfig().getFirst("cachebackend"));
+	}
+
+	static int cacheLifespan(ComponentModel model) {
+		return SCIMUserSync.getIntConfig(model, "cachelifespan", DEFAULT_CACHE_LIFESPAN);
+	}
+
+	/* Bytes */
+	private static int offHeapSize(ComponentModel model) {
+		return Math.min(MAX_OFFHEAP_SIZE, SCIMUserSync.getIntConfig(model, "cacheoffheapsize", DEFAULT_OFFHEAP_SIZE)) * 1024 * 1024;
+	}
+
+	/* Returns null when the indexes are disabled */
+	protected SCIMUserIndex getUserIndex(ComponentModel model) {
+		if (!Boolean.valueOf(model.getConfig().getFirst("userindex"))) {
+			return null;
+		}
+		return userIndexes.computeIfAbsent(model.getId(), id -> {
+			String extra = model.getConfig().getFirst("indexattributes");
+			List<String> attributes = extra == null || extra.trim().isEmpty() ? new LinkedList<String>() :
+				Arrays.asList(extra.trim().split("\\s*,\\s*"));
+			return new SCIMUserIndex(attributes);
+		});
+	}
+
+	/* Returns null when the search index is disabled, imported users are searched in the local storage */
+	protected SCIMUserSearchIndex getSearchIndex(ComponentModel model) {
+		if (!Boolean.valueOf(model.getConfig().getFirst("searchindex")) ||
+				!Boolean.valueOf(model.getConfig().getFirst("transientusers"))) {
+			return null;
+		}
+		return searchIndexes.computeIfAbsent(model.getId(), id -> new SCIMUserSearchIndex());
+	}
+
+	protected Map<String, SCIMOutbox> getOutboxes() {
+		return outboxes;
+	}
+
+	private SCIMOutbox openOutbox(ComponentModel model) {
+		return outboxes.computeIfAbsent(model.getId(), id -> {
+			try {
+				return SCIMOutbox.open(model);
+			} catch (IOException e) {
+				logger.errorv("Cannot open SCIM outbox of {0}: {1}", model.getName(), e.getMessage());
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/* Journal a SCIM write for the dispatcher, returns false when write-behind is disabled */
+	protected boolean writeBehind(ComponentModel model, SCIMOutbox.Operation operation, String username,
+			String attribute, List<String> values) {
+		if (!SCIMOutbox.isEnabled(model)) {
+			return false;
+		}
+		SCIMOutbox outbox = openOutbox(model);
+		outbox.append(operation, username, attribute, values);
+		outboxDispatcher.wakeUp(outbox);
+		return true;
+	}
+
+	/* True while writes of the user wait in the journal, SCIM does not reflect them yet */
+	protected boolean hasPendingWrites(ComponentModel model, String username) {
+		SCIMOutbox outbox = outboxes.get(model.getId());
+		return outbox != null && outbox.hasPending(username);
+	}
+
+	/* Shared by every session of the component, unsaved components get their own */
+	protected SCIMTokenManager getTokenManager(KeycloakSession session, ComponentModel model) {
+		if (model.getId() == null) {
+			return createTokenManager(session, model);
+		}
+		return startTokenManager(session.getKeycloakSessionFactory(), model);
+	}
+
+	/* Not shared and never refreshed in the background */
+	protected SCIMTokenManager createTokenManager(KeycloakSession session, ComponentModel model) {
+		return new SCIMTokenManager(session.getKeycloakSessionFactory(), model, authRefresher);
+	}
+
+	/* The caller has the current model, a manager holding other credentials was
+	 * built before they were changed, possibly on another node, and is replaced.
+	 */
+	private SCIMTokenManager startTokenManager(KeycloakSessionFactory sessionFactory, ComponentModel model) {
+		SCIMTokenManager tokens = tokenManagers.compute(model.getId(), (id, existing) -> {
+			if (existing != null && existing.hasCredentialsOf(model)) {
+				return existing;
+			}
+			if (existing != null) {
+				existing.close();
+			}
+			return new SCIMTokenManager(sessionFactory, model, authRefresher);
+		});
+		tokens.start();
+		return tokens;
+	}
+
+	/* Login session shared by every session of the component, unsaved components get their own */
+	protected SCIMAdminSession getAdminSession(KeycloakSession session, ComponentModel model) {
+		if (model.getId() == null) {
+			return createAdminSession(session, model);
+		}
+		return startAdminSession(session.getKeycloakSessionFactory(), model);
+	}
+
+	/* Not shared and never kept alive in the background */
+	protected SCIMAdminSession createAdminSession(KeycloakSession session, ComponentModel model) {
+		return new SCIMAdminSession(session.getKeycloakSessionFactory(), model, authRefresher);
+	}
+
+	private SCIMAdminSession startAdminSession(KeycloakSessionFactory sessionFactory, ComponentModel model) {
+		SCIMAdminSession adminSession = adminSessions.compute(model.getId(), (id, existing) -> {
+			if (existing != null && existing.hasCredentialsOf(model)) {
+				return existing;
+			}
+			if (existing != null) {
+				existing.close();
+			}
+			return new SCIMAdminSession(sessionFactory, model, authRefresher);
+		});
+		adminSession.start();
+		return adminSession;
+	}
+
+	/* Authenticate in the background with the configured auth mode */
+	private void startAuth(KeycloakSessionFactory sessionFactory, ComponentModel model) {
+		if (SCIMTokenManager.isBearer(model)) {
+			startTokenManager(sessionFactory, model);
+		} else {
+			startAdminSession(sessionFactory, model);
+		}
+	}
+
+	private void closeAuth(String componentId) {
+		if (componentId == null) {
+			return;
+		}
+		SCIMTokenManager tokens = tokenManagers.remove(componentId);
+		if (tokens != null) {
+			tokens.close();
+		}
+		SCIMAdminSession adminSession = adminSessions.remove(componentId);
+		if (adminSession != null) {
+			adminSession.close();
+		}
+	}
+
+	protected SCIMImportLocks getImportLocks() {
+		return importLocks;
+	}
+
 	protected SCIMAuthenticator createSCIMAuthenticator() {
 		return new SCIMAuthenticator();
 	}
@@ -0,0 +1,595 @@
+package keycloak.scim_user_spi;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+/* Imports SCIM users into the local Keycloak storage.
+ *
+ * The sync runs as a pipeline: the first page is fetched to learn
+ * totalResults, the remaining startIndex range is split into pages fetched in
+ * parallel by "syncworkers" threads. Fetched pages go through a bounded queue
+ * to the import stage, which commits every "syncbatchsize" users in its own
+ * transaction. A full queue blocks the fetchers, so a fast backend cannot
+ * flood memory. When a batch fails, its users are retried one transaction
+ * each so a single bad record only fails itself.
+ *
+ * When the server advertises cursor pagination in /ServiceProviderConfig,
+ * pages are followed through nextCursor instead of startIndex.
+ *
+ * A full sync records its progress in a SCIMSyncCheckpoint and resumes from
+ * it when interrupted. Indexes may shift if the directory changes between
+ * runs, which is harmless as importing an existing user only updates it.
+ *
+ * With "transientusers" nothing is imported, fetched users refresh the
+ * SCIMUserCache of the component instead, and with "cachesnapshot" a full
+ * sync also writes them to a SCIMUserSnapshot.
+ */
+public class SCIMUserSync {
+	private static final Logger logger = Logger.getLogger(SCIMUserSync.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int DEFAULT_WORKERS = 4;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	/* Pages buffered between the fetch and import stages, per worker */
+	private static final int QUEUED_PAGES_PER_WORKER = 2;
+	/* Changes made on the server while the seed file was exported, as clocks may differ */
+	private static final long SEED_CATCHUP_MARGIN = 60000;
+
+	/* Fetches one page of users, startIndex is 1-based */
+	interface PageFetcher {
+		SCIMUser fetch(Scim scim, int startIndex, int count);
+	}
+
+	/* Fetches one page of users with cursor pagination, the first cursor is empty */
+	interface CursorFetcher {
+		SCIMUser fetch(Scim scim, String cursor, int count);
+	}
+
+	/* Unit of work handed from the fetch to the import stage */
+	private static class Page {
+		final int startIndex;
+		final int count;
+		final List<SCIMUser.Resource> resources;
+		/* Cursor pagination only */
+		final String nextCursor;
+
+		Page(int startIndex, int count, List<SCIMUser.Resource> resources) {
+			this(startIndex, count, resources, null);
+		}
+
+		Page(int startIndex, int count, List<SCIMUser.Resource> resources, String nextCursor) {
+			this.startIndex = startIndex;
+			this.count = count;
+			this.resources = resources;
+			this.nextCursor = nextCursor;
+		}
+
+		boolean last() {
+			return failed() || nextCursor == null || nextCursor.isEmpty();
+		}
+
+		boolean failed() {
+			return resources == null;
+		}
+	}
+
+	private final SCIMUserStorageProviderFactory factory;
+	private final KeycloakSessionFactory sessionFactory;
+	private final String realmId;
+	private final ComponentModel model;
+	private final int pageSize;
+	private final int workers;
+	private final int batchSize;
+	private final boolean transientUsers;
+	/* Full syncs of transient users from the start of the directory only */
+	private SCIMUserSnapshot.Writer snapshot;
+
+	public SCIMUserSync(SCIMUserStorageProviderFactory factory, KeycloakSessionFactory sessionFactory,
+			String realmId, ComponentModel model) {
+		this.factory = factory;
+		this.sessionFactory = sessionFactory;
+		this.realmId = realmId;
+		this.model = model;
+		this.pageSize = getIntConfig(model, "syncpagesize", DEFAULT_PAGE_SIZE);
+		this.workers = getIntConfig(model, "syncworkers", DEFAULT_WORKERS);
+		this.batchSize = getIntConfig(model, "syncbatchsize", DEFAULT_BATCH_SIZE);
+		this.transientUsers = Boolean.valueOf(model.getConfig().getFirst("transientusers"));
+	}
+
+	static int getIntConfig(ComponentModel model, String name, int defaultValue) {
+		String value = model.getConfig().getFirst(name);
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			return parsed > 0 ? parsed : defaultValue;
+		} catch (NumberFormatException e) {
+			logger.warnv("Invalid value {0} for {1}, using {2}", value, name, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public SynchronizationResult sync() {
+		logger.infov("Full sync of SCIM users for {0}", model.getName());
+		Date started = new Date();
+		Path seed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+			SCIMSeedFile.pending(session.realms().getRealm(realmId), model));
+		SCIMSyncCheckpoint checkpoint = SCIMSyncCheckpoint.load(model,
+				seed != null ? SCIMSeedFile.source(seed) : SCIMSyncCheckpoint.SERVER);
+		SynchronizationResult result;
+
+		if (SCIMUserSnapshot.isEnabled(model) && checkpoint.getStartIndex() == 1 && checkpoint.getCursor() == null) {
+			snapshot = SCIMUserSnapshot.create(model, started);
+		}
+		try {
+			result = seed != null ? seedSync(seed, checkpoint) : fullSync(checkpoint);
+		} catch (RuntimeException e) {
+			if (snapshot != null) {
+				snapshot.abort();
+			}
+			throw e;
+		}
+
+		if (snapshot != null) {
+			if (result.getFailed() == 0) {
+				snapshot.commit();
+			} else {
+				snapshot.abort();
+			}
+		}
+		return result;
+	}
+
+	private SynchronizationResult fullSync(SCIMSyncCheckpoint checkpoint) {
+		SynchronizationResult result;
+
+		if (cursorSupported()) {
+			CursorFetcher fetcher = (scim, cursor, count) -> scim.getUsersPage(cursor, count);
+			result = runCursor(fetcher, checkpoint);
+			if (result == null) {
+				/* The stored cursor expired, start over */
+				checkpoint.delete();
+				result = runCursor(fetcher, SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER));
+			}
+		} else {
+			PageFetcher fetcher = (scim, startIndex, count) -> scim.getUsersPage(startIndex, count);
+			result = run(fetcher, checkpoint);
+			if (result == null) {
+				/* The directory shrank below the checkpoint, start over */
+				checkpoint.delete();
+				result = run(fetcher, SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER));
+			}
+		}
+		return result;
+	}
+
+	/* Imports the seed file through the same import stage as the server pages,
+	 * the file is parsed on its own thread while batches are committed. Then
+	 * catches up with the users changed since the newest user of the file.
+	 * Without meta.lastModified in the file nothing tells when it was exported,
+	 * a full sync from the server follows instead.
+	 */
+	private SynchronizationResult seedSync(Path file, SCIMSyncCheckpoint checkpoint) {
+		logger.infov("Seeding SCIM users of {0} from {1}", model.getName(), file);
+		SynchronizationResult result = new SynchronizationResult();
+		int resume = checkpoint.getStartIndex();
+
+		SCIMSeedFile seed;
+		try {
+			seed = SCIMSeedFile.open(file);
+		} catch (IOException e) {
+			logger.errorv("Cannot open SCIM seed file {0}: {1}", file, e.getMessage());
+			result.increaseFailed();
+			return result;
+		}
+
+		BlockingQueue<Page> queue = new ArrayBlockingQueue<Page>(workers * QUEUED_PAGES_PER_WORKER);
+		Thread readThread = new Thread(() -> {
+			int index = 1;
+			try {
+				while (true) {
+					List<SCIMUser.Resource> resources;
+					try {
+						resources = seed.next(pageSize);
+					} catch (IOException | RuntimeException e) {
+						logger.errorv("Failed to read SCIM seed file {0} after {1} users: {2}", file,
+								seed.getRead(), e.getMessage());
+						queue.put(new Page(index, 1, null));
+						return;
+					}
+					/* Users committed before an interruption are skipped */
+					int skip = Math.max(0, Math.min(resources.size(), resume - index));
+					int start = index + skip;
+					index += resources.size();
+					if (resources.isEmpty()) {
+						/* An empty page ends the file */
+						queue.put(new Page(start, 0, resources));
+						return;
+					}
+					/* Like fetched pages, the users read feed the local indexes */
+					index(resources);
+					if (skip < resources.size()) {
+						queue.put(new Page(start, resources.size() - skip, resources.subList(skip, resources.size())));
+					}
+				}
+			} catch (InterruptedException e) {
+				/* Import stage gave up */
+			}
+		}, "scim-sync-seed");
+		readThread.setDaemon(true);
+		readThread.start();
+
+		boolean complete = false;
+		try {
+			while (true) {
+				Page page = queue.take();
+				if (page.failed()) {
+					result.setFailed(result.getFailed() + page.count);
+					break;
+				}
+				if (page.resources.isEmpty()) {
+					complete = true;
+					break;
+				}
+				importPage(page, result, checkpoint);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			readThread.interrupt();
+			try {
+				seed.close();
+			} catch (IOException e) {
+				logger.debugv("Error closing SCIM seed file: {0}", e.getMessage());
+			}
+		}
+
+		if (!complete) {
+			logger.infov("SCIM seed of {0} incomplete, next sync resumes from user {1}", model.getName(),
+					checkpoint.getStartIndex());
+			return result;
+		}
+		checkpoint.delete();
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+			SCIMSeedFile.imported(session.realms().getRealm(realmId), model, file));
+		logger.infov("Seeded {0} SCIM users from {1}: {2}", seed.getRead(), file, result.getStatus());
+
+		Date since = seed.getLastModified();
+		try {
+			if (since != null) {
+				result.add(syncSince(new Date(since.getTime() - SEED_CATCHUP_MARGIN)));
+			} else {
+				/* The file may have been copied or touched long after the export */
+				logger.infov("SCIM seed file {0} has no meta.lastModified, syncing all users from the server", file);
+				result.add(fullSync(SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER)));
+			}
+		} catch (RuntimeException e) {
+			/* The next changed users sync catches up instead */
+			logger.errorv("Failed to sync SCIM users changed since the seed file: {0}", e.getMessage());
+			result.increaseFailed();
+		}
+		return result;
+	}
+
+	private void index(List<SCIMUser.Resource> resources) {
+		SCIMUserIndex index = factory.getUserIndex(model);
+		SCIMUserSearchIndex searchIndex = factory.getSearchIndex(model);
+		for (SCIMUser.Resource resource : resources) {
+			if (index != null) {
+				index.update(resource);
+			}
+			if (searchIndex != null) {
+				searchIndex.update(resource);
+			}
+		}
+	}
+
+	public SynchronizationResult syncSince(Date since) {
+		logger.infov("Sync of SCIM users changed since {0} for {1}", since, model.getName());
+		if (cursorSupported()) {
+			return runCursor((scim, cursor, count) -> scim.getUsersModifiedSincePage(since, cursor, count), null);
+		}
+		return run((scim, startIndex, count) -> scim.getUsersModifiedSincePage(since, startIndex, count), null);
+	}
+
+	private boolean cursorSupported() {
+		try (KeycloakSession session = sessionFactory.create()) {
+			return new Scim(session, model, factory).getServiceProviderConfig().isCursorSupported();
+		}
+	}
+
+	/* Cursor pagination: deep pages cost the same as the first one and stay
+	 * stable under concurrent changes, but pages can only be fetched one after
+	 * the other. A single fetcher feeds the import stage through the queue.
+	 * Returns null when a stored cursor is rejected by the server.
+	 */
+	private SynchronizationResult runCursor(CursorFetcher fetcher, SCIMSyncCheckpoint checkpoint) {
+		SynchronizationResult result = new SynchronizationResult();
+		String resume = checkpoint == null || checkpoint.getCursor() == null ? "" : checkpoint.getCursor();
+
+		SCIMUser first;
+		try {
+			first = fetchCursorPage(fetcher, resume, pageSize);
+		} catch (RuntimeException e) {
+			if (!resume.isEmpty()) {
+				logger.warnv("Stored sync cursor rejected: {0}", e.getMessage());
+				return null;
+			}
+			throw e;
+		}
+
+		BlockingQueue<Page> queue = new ArrayBlockingQueue<Page>(workers * QUEUED_PAGES_PER_WORKER);
+		Thread fetchThread = new Thread(() -> {
+			Page page = cursorPage(first);
+			try {
+				queue.put(page);
+				while (!page.last()) {
+					String cursor = page.nextCursor;
+					try {
+						page = cursorPage(fetchCursorPage(fetcher, cursor, pageSize));
+					} catch (RuntimeException e) {
+						logger.errorv("Failed to fetch SCIM users at cursor {0}: {1}", cursor, e.getMessage());
+						page = new Page(0, pageSize, null);
+					}
+					queue.put(page);
+				}
+			} catch (InterruptedException e) {
+				/* Import stage gave up */
+			}
+		}, "scim-sync-cursor");
+		fetchThread.setDaemon(true);
+		fetchThread.start();
+
+		boolean complete = false;
+		try {
+			while (true) {
+				Page page = queue.take();
+				if (page.failed()) {
+					result.setFailed(result.getFailed() + page.count);
+					break;
+				}
+				importPage(page, result, null);
+				if (page.last()) {
+					complete = true;
+					break;
+				}
+				if (checkpoint != null) {
+					checkpoint.cursorCommitted(page.nextCursor);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			fetchThread.interrupt();
+		}
+
+		if (checkpoint != null) {
+			if (complete) {
+				checkpoint.delete();
+			} else {
+				logger.infov("SCIM sync generation {0} incomplete, next sync resumes from cursor {1}",
+						checkpoint.getGeneration(), checkpoint.getCursor());
+			}
+		}
+		logger.infov("SCIM sync finished: {0}", result.getStatus());
+		return result;
+	}
+
+	private static Page cursorPage(SCIMUser users) {
+		List<SCIMUser.Resource> resources = users.getResources() == null ?
+				new ArrayList<SCIMUser.Resource>() : users.getResources();
+		return new Page(0, resources.size(), resources, users.getNextCursor());
+	}
+
+	private SCIMUser fetchCursorPage(CursorFetcher fetcher, String cursor, int count) {
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, model, factory);
+			return fetcher.fetch(scim, cursor, count);
+		}
+	}
+
+	/* Returns null when resuming from a checkpoint past the end of the directory */
+	private SynchronizationResult run(PageFetcher fetcher, SCIMSyncCheckpoint checkpoint) {
+		SynchronizationResult result = new SynchronizationResult();
+		int firstIndex = checkpoint == null ? 1 : checkpoint.getStartIndex();
+
+		/* The first page also tells us the size of the directory */
+		SCIMUser first = fetchPage(fetcher, firstIndex, pageSize);
+		int total = first.getTotalResults() == null ? 0 : first.getTotalResults();
+		List<SCIMUser.Resource> firstResources = first.getResources() == null ?
+				new ArrayList<SCIMUser.Resource>() : first.getResources();
+		int received = firstResources.size();
+
+		if (received == 0 && firstIndex > 1) {
+			return null;
+		}
+
+		/* Servers may cap the page size below what was asked for */
+		int count = received > 0 && received < pageSize ? received : pageSize;
+
+		List<Integer> startIndexes = new ArrayList<Integer>();
+		for (int start = firstIndex + received; received > 0 && start <= total; start += count) {
+			startIndexes.add(start);
+		}
+
+		importPage(new Page(firstIndex, Math.min(count, total - firstIndex + 1), firstResources), result, checkpoint);
+
+		if (startIndexes.isEmpty()) {
+			return finish(result, checkpoint, total);
+		}
+
+		BlockingQueue<Page> queue = new ArrayBlockingQueue<Page>(workers * QUEUED_PAGES_PER_WORKER);
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, startIndexes.size()), r -> {
+			Thread t = new Thread(r, "scim-sync-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		try {
+			for (int start : startIndexes) {
+				int expected = Math.min(count, total - start + 1);
+				pool.submit(() -> {
+					Page page;
+					try {
+						SCIMUser users = fetchPage(fetcher, start, count);
+						page = new Page(start, expected, users.getResources() == null ?
+								new ArrayList<SCIMUser.Resource>() : users.getResources());
+					} catch (RuntimeException e) {
+						logger.errorv("Failed to fetch SCIM users {0} to {1}: {2}", start,
+								start + count - 1, e.getMessage());
+						page = new Page(start, expected, null);
+					}
+					queue.put(page);
+					return null;
+				});
+			}
+
+			/* Every fetch task hands over exactly one page, failed or not */
+			for (int i = 0; i < startIndexes.size(); i++) {
+				Page page = queue.take();
+				if (page.failed()) {
+					result.setFailed(result.getFailed() + page.count);
+				} else {
+					importPage(page, result, checkpoint);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return finish(result, checkpoint, total);
+	}
+
+	private SynchronizationResult finish(SynchronizationResult result, SCIMSyncCheckpoint checkpoint, int total) {
+		if (checkpoint != null) {
+			if (checkpoint.getStartIndex() > total) {
+				checkpoint.delete();
+			} else {
+				logger.infov("SCIM sync generation {0} incomplete, next sync resumes from index {1}",
+						checkpoint.getGeneration(), checkpoint.getStartIndex());
+			}
+		}
+		logger.infov("SCIM sync finished: {0}", result.getStatus());
+		return result;
+	}
+
+	private SCIMUser fetchPage(PageFetcher fetcher, int startIndex, int count) {
+		try (KeycloakSession session = sessionFactory.create()) {
+			Scim scim = new Scim(session, model, factory);
+			return fetcher.fetch(scim, startIndex, count);
+		}
+	}
+
+	private void importPage(Page page, SynchronizationResult result, SCIMSyncCheckpoint checkpoint) {
+		List<SCIMUser.Resource> resources = page.resources;
+		/* A page may hold fewer users than expected if the directory changed meanwhile */
+		int pageEnd = page.startIndex + Math.max(page.count, resources.size());
+
+		if (resources.isEmpty() && checkpoint != null) {
+			checkpoint.committed(page.startIndex, pageEnd);
+		}
+
+		for (int from = 0; from < resources.size(); from += batchSize) {
+			int to = Math.min(from + batchSize, resources.size());
+			List<SCIMUser.Resource> batch = resources.subList(from, to);
+			SynchronizationResult batchResult = new SynchronizationResult();
+
+			try {
+				importBatch(batch, batchResult);
+			} catch (RuntimeException e) {
+				logger.warnv("SCIM sync batch at {0} failed, retrying users individually: {1}",
+						page.startIndex + from, e.getMessage());
+				batchResult = new SynchronizationResult();
+				for (SCIMUser.Resource resource : batch) {
+					try {
+						importBatch(Collections.singletonList(resource), batchResult);
+					} catch (RuntimeException ue) {
+						logger.errorv("Failed to sync SCIM user {0}: {1}", resource.getUserName(), ue.getMessage());
+						batchResult.increaseFailed();
+					}
+				}
+			}
+			result.add(batchResult);
+
+			/* Users which failed individually are not retried on resume */
+			if (checkpoint != null) {
+				checkpoint.committed(page.startIndex + from, to == resources.size() ? pageEnd : page.startIndex + to);
+			}
+		}
+	}
+
+	/* Imports the users in one transaction, any failure rolls back the whole batch */
+	private void importBatch(List<SCIMUser.Resource> batch, SynchronizationResult batchResult) {
+		if (transientUsers) {
+			/* Nothing is imported, the fetched users refresh the cache */
+			SCIMUserCache cache = factory.getUserCache(model);
+			for (SCIMUser.Resource resource : batch) {
+				cache.put(resource);
+				if (snapshot != null) {
+					snapshot.write(resource);
+				}
+				batchResult.increaseUpdated();
+			}
+			return;
+		}
+
+		SynchronizationResult pending = new SynchronizationResult();
+
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			SCIMUserStorageProvider provider = factory.create(session, model);
+
+			for (SCIMUser.Resource resource : batch) {
+				syncUser(session, realm, provider, resource, pending);
+			}
+		});
+
+		/* Only counted once committed */
+		batchResult.add(pending);
+	}
+
+	private void syncUser(KeycloakSession session, RealmModel realm, SCIMUserStorageProvider provider,
+			SCIMUser.Resource resource, SynchronizationResult result) {
+		String username = resource.getUserName();
+
+		UserModel local = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+		if (local == null) {
+			provider.createUserInKeycloak(realm, username, resource);
+			result.increaseAdded();
+		} else if (!model.getId().equals(local.getFederationLink())) {
+			logger.warnv("User {0} exists but is not linked to {1}, skipping", username, model.getName());
+			result.increaseFailed();
+		} else if (provider.updateUserInKeycloak(realm, local, resource)) {
+			result.increaseUpdated();
+		}
+	}
+}
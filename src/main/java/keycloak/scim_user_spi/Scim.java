@@ -3,15 +3,32 @@ package keycloak.scim_user_spi;
 import org.jboss.logging.Logger;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserModel;
 import org.keycloak.broker.provider.util.SimpleHttp;
 
+import keycloak.scim_user_spi.schemas.SCIMBulkRequest;
+import keycloak.scim_user_spi.schemas.SCIMBulkResponse;
 import keycloak.scim_user_spi.schemas.SCIMSearchRequest;
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
 import keycloak.scim_user_spi.schemas.SCIMUser;
 import keycloak.scim_user_spi.schemas.IntegrationDomain;
 
@@ -22,88 +39,138 @@ public class Scim {
 	private final ComponentModel model;
 	public static final String SCHEMA_CORE_USER = "urn:ietf:params:scim:schemas:core:2.0:User";
 	public static final String SCHEMA_API_MESSAGES_SEARCHREQUEST = "urn:ietf:params:scim:api:messages:2.0:SearchRequest";
+	public static final String SCHEMA_API_MESSAGES_BULKREQUEST = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+	/* KeycloakSession attribute prefix holding the per-request SCIM results */
+	private static final String SESSION_RESULTS_ATTR = "scim.results.";
+	/* Users per OR filter when the server does not advertise filter.maxResults */
+	private static final int DEFAULT_BATCH_LOOKUP_SIZE = 50;
+	/* Keeps the filter well below common request size limits */
+	private static final int MAX_FILTER_LENGTH = 4096;
 
-	String sessionid_cookie;
-	String csrf_cookie;
-	String csrf_value;
 	Boolean logged_in = false;
+	/* Resolved once, an unsaved component gets a new one from every lookup */
+	private volatile SCIMAdminSession adminSession;
+	private volatile SCIMTokenManager tokenManager;
+	/* Credentials not shared with the other requests of the component, to validate a configuration */
+	private final boolean privateAuth;
 
 	private final KeycloakSession session;
+	private final SCIMUserStorageProviderFactory factory;
 
-	public Scim(KeycloakSession session, ComponentModel model) {
+	/* Attributes requested from the server for a user, each projection
+	 * includes the attributes of the previous ones.
+	 */
+	public enum Projection {
+		ID("id", "userName"),
+		PROFILE("id", "userName", "name", "emails", "active"),
+		FULL("id", "userName", "name", "emails", "active", "groups", "meta", "externalId");
+
+		private final List<String> attributes;
+
+		Projection(String... attributes) {
+			this.attributes = Arrays.asList(attributes);
+		}
+
+		public List<String> getAttributes() {
+			return attributes;
+		}
+
+		/* Value of the attributes query parameter */
+		public String getQuery() {
+			return String.join(",", attributes);
+		}
+
+		public boolean covers(Projection other) {
+			return ordinal() >= other.ordinal();
+		}
+	}
+
+	public Scim(KeycloakSession session, ComponentModel model, SCIMUserStorageProviderFactory factory) {
+		this(session, model, factory, false);
+	}
+
+	public Scim(KeycloakSession session, ComponentModel model, SCIMUserStorageProviderFactory factory,
+			boolean privateAuth) {
 		this.model = model;
 		this.session = session;
+		this.factory = factory;
+		this.privateAuth = privateAuth;
 	}
 
-	private void parseSetCookie(SimpleHttp.Response response) throws IOException {
-		List<String> setCookieHeaders = response.getHeader("Set-Cookie");
-
-		for(String h: setCookieHeaders) {
-			String[] kv = h.split("\\;");
-			for(String s: kv) {
-				if (s.contains("csrftoken")) {
-					/* key=value */
-					csrf_cookie = s;
-					csrf_value = s.substring(s.lastIndexOf("=") + 1);
-				} else if (s.contains("sessionid")) {
-					/* key=value */
-					sessionid_cookie = s;
-					csrf_cookie += String.format("; %s", sessionid_cookie);
-				}
-			}
+	/* SCIM results memoized for the lifetime of the KeycloakSession, so repeated
+	 * reads of the same user within one request cost a single backend call.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, SCIMUser> sessionResults() {
+		String attr = SESSION_RESULTS_ATTR + model.getId();
+		Map<String, SCIMUser> results = (Map<String, SCIMUser>) session.getAttribute(attr);
+
+		if (results == null) {
+			results = new HashMap<String, SCIMUser>();
+			session.setAttribute(attr, results);
 		}
+		return results;
 	}
 
-	public Integer csrfAuthLogin() {
-		String url = "";
-		String loginPage = "";
-		SimpleHttp.Response response = null;
+	private SCIMUser sessionResult(String key, Supplier<SCIMUser> request) {
+		Map<String, SCIMUser> results = sessionResults();
+		SCIMUser result = results.get(key);
 
-		/* Get inputs */
-		String server = model.getConfig().getFirst("scimurl");
-		String username = model.getConfig().getFirst("loginusername");
-		String password = model.getConfig().getFirst("loginpassword");
+		if (result == null) {
+			result = request.get();
+			results.put(key, result);
+		}
+		return result;
+	}
 
-		/* Execute GET to get initial csrftoken */
-		url = String.format("https://%s%s", server, "/admin/login/");
+	/* Writes make any memoized result stale */
+	private void clearSessionResults() {
+		session.removeAttribute(SESSION_RESULTS_ATTR + model.getId());
+	}
 
-		try {
-			response = SimpleHttp.doGet(url, session).asResponse();
+	public void close() {
+		clearSessionResults();
+	}
 
-			parseSetCookie(response);
+	/* Authenticate to the server unless done already, the login is shared by the component */
+	public Integer login() {
+		if (SCIMTokenManager.isBearer(model)) {
+			tokenManager().getToken(session);
+		} else {
+			adminSession().get(session);
+		}
+		this.logged_in = true;
+		return 0;
+	}
 
-			response.close();
-		} catch (Exception e) {
-			logger.errorv("Error: {0}", e.getMessage());
-			throw new RuntimeException(e);
+	private SCIMAdminSession adminSession() {
+		if (adminSession == null) {
+			adminSession = privateAuth ? factory.createAdminSession(session, model) :
+				factory.getAdminSession(session, model);
 		}
+		return adminSession;
+	}
 
-		/* Perform login POST */
-		try {
-			/* Here we retrieve the Response sessionid and csrftoken cookie */
-			response = SimpleHttp.doPost(url, session)
-					.header("X-CSRFToken", csrf_value)
-					.header("Cookie",  csrf_cookie)
-					.header("referer", url)
-					.param("username",  username).param("password",  password).asResponse();
-
-			parseSetCookie(response);
-			response.close();
-		} catch (Exception e) {
-			logger.error("Error: " + e.getMessage());
-			throw new RuntimeException(e);
+	private SCIMTokenManager tokenManager() {
+		if (tokenManager == null) {
+			tokenManager = privateAuth ? factory.createTokenManager(session, model) :
+				factory.getTokenManager(session, model);
 		}
+		return tokenManager;
+	}
 
+	/* Log in again now, replacing the shared session of the component */
+	public Integer csrfAuthLogin() {
+		adminSession().login(session);
 		this.logged_in = true;
 		return 0;
-
 	}
 
 	public boolean isValid(String username, String password) {
 		SimpleHttp.Response response = null;
 		com.fasterxml.jackson.databind.JsonNode result;
 		if (this.logged_in == false) {
-			this.csrfAuthLogin();
+			this.login();
 		}
 
 		/* Build URL */
@@ -113,17 +180,23 @@ public class Scim {
 
 		logger.infov("Sending POST request to {0}", endpointurl);
 		try {
-			response = SimpleHttp.doPost(endpointurl, session).header("X-CSRFToken", this.csrf_value)
-					.header("Cookie",  this.csrf_cookie)
-					.header("SessionId", sessionid_cookie)
+			response = execute(session, SimpleHttp.doPost(endpointurl, session)
 					.header("referer", endpointurl)
 					.param("username",  username)
-					.param("password",  password).asResponse();
+					.param("password",  password));
 			result = response.asJson();
 			return (result.get("result").get("validated").asBoolean());
 		} catch (Exception e) {
 			logger.infov("Failed to authenticate user {0}: {1}", username, e);
 			return false;
+		} finally {
+			if (response != null) {
+				try {
+					response.close();
+				} catch (IOException e) {
+					logger.debugv("Error closing response: {0}", e.getMessage());
+				}
+			}
 		}
 
 	}
@@ -186,12 +259,53 @@ public class Scim {
 	}
 
 	public <T> SimpleHttp.Response clientRequest(String endpoint, String method, T entity) throws Exception {
-		SimpleHttp.Response response = null;
+		if (this.logged_in == false) {
+			this.login();
+		}
+
+		return clientRequest(session, endpoint, method, entity);
+	}
 
+	/* Asynchronous variant of clientRequest, the response body is parsed as a SCIMUser.
+	 *
+	 * Login happens on the calling thread, the request itself runs on the factory
+	 * executor (virtual threads when the JVM provides them) in a short-lived
+	 * KeycloakSession, as sessions must not be shared between threads.
+	 */
+	public <T> CompletableFuture<SCIMUser> clientRequestAsync(String endpoint, String method, T entity) {
+		return clientRequestAsync(endpoint, method, entity, response -> response.asJson(SCIMUser.class));
+	}
+
+	interface ResponseReader<R> {
+		R read(SimpleHttp.Response response) throws IOException;
+	}
+
+	private <T, R> CompletableFuture<R> clientRequestAsync(String endpoint, String method, T entity,
+			ResponseReader<R> reader) {
 		if (this.logged_in == false) {
-			this.csrfAuthLogin();
+			this.login();
 		}
 
+		KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+		return CompletableFuture.supplyAsync(() -> {
+			try (KeycloakSession asyncSession = sessionFactory.create()) {
+				SimpleHttp.Response response = clientRequest(asyncSession, endpoint, method, entity);
+				try {
+					return reader.read(response);
+				} finally {
+					response.close();
+				}
+			} catch (Exception e) {
+				logger.errorv("Error: {0}", e.getMessage());
+				throw new CompletionException(e);
+			}
+		}, factory.getAsyncExecutor());
+	}
+
+	private <T> SimpleHttp.Response clientRequest(KeycloakSession session, String endpoint, String method, T entity) throws Exception {
+		SimpleHttp.Response response = null;
+
 		/* Build URL */
 		String server = model.getConfig().getFirst("scimurl");
 		String endpointurl;
@@ -204,42 +318,7 @@ public class Scim {
 		logger.infov("Sending {0} request to {1}", method.toString(), endpointurl);
 
 		try {
-			switch (method) {
-			case "GET":
-				response = SimpleHttp.doGet(endpointurl, session)
-				.header("X-CSRFToken", csrf_value)
-				.header("Cookie",  csrf_cookie)
-				.header("SessionId", sessionid_cookie)
-				.asResponse();
-				break;
-			case "DELETE":
-				response = SimpleHttp.doDelete(endpointurl, session)
-				.header("X-CSRFToken", csrf_value)
-				.header("Cookie",  csrf_cookie)
-				.header("SessionId", sessionid_cookie)
-				.header("referer", endpointurl)
-				.asResponse();
-				break;
-			case "POST":
-				/* Header is needed for domains endpoint only, but use it here anyway */
-				response = SimpleHttp.doPost(endpointurl, session)
-				.header("X-CSRFToken", this.csrf_value)
-				.header("Cookie",  this.csrf_cookie)
-				.header("SessionId", sessionid_cookie)
-				.header("referer", endpointurl)
-				.json(entity).asResponse();
-				break;
-			case "PUT":
-				response = SimpleHttp.doPut(endpointurl, session)
-				.header("X-CSRFToken", this.csrf_value)
-				.header("SessionId", sessionid_cookie)
-				.header("Cookie",  this.csrf_cookie)
-				.json(entity).asResponse();
-				break;
-			default:
-				logger.warn("Unknown HTTP method, skipping");
-				break;
-			}
+			response = send(session, endpointurl, method, entity);
 		} catch (Exception e) {
 			throw new Exception();
 		}
@@ -248,7 +327,74 @@ public class Scim {
 		return response;
 	}
 
-	private SCIMSearchRequest setupSearch(String username, String attribute) {
+	private <T> SimpleHttp.Response send(KeycloakSession session, String endpointurl, String method, T entity)
+			throws IOException {
+		SimpleHttp request;
+
+		switch (method) {
+		case "GET":
+			request = SimpleHttp.doGet(endpointurl, session);
+			break;
+		case "DELETE":
+			request = SimpleHttp.doDelete(endpointurl, session)
+			.header("referer", endpointurl);
+			break;
+		case "POST":
+			/* Header is needed for domains endpoint only, but use it here anyway */
+			request = SimpleHttp.doPost(endpointurl, session)
+			.header("referer", endpointurl)
+			.json(entity);
+			break;
+		case "PUT":
+			request = SimpleHttp.doPut(endpointurl, session)
+			.json(entity);
+			break;
+		default:
+			logger.warn("Unknown HTTP method, skipping");
+			return null;
+		}
+
+		return execute(session, request);
+	}
+
+	/* Send the request with the credentials of the configured auth mode, once more
+	 * with fresh ones if the server rejected them.
+	 */
+	private SimpleHttp.Response execute(KeycloakSession session, SimpleHttp request) throws IOException {
+		if (!SCIMTokenManager.isBearer(model)) {
+			SCIMAdminSession shared = adminSession();
+			SCIMAdminSession.Cookies cookies = shared.get(session);
+			SimpleHttp.Response response = cookies.apply(request).asResponse();
+			if ((response.getStatus() == 401 || response.getStatus() == 403) && shared.invalidate(cookies)) {
+				/* Dropped by the server before the background noticed, retry once with a new session */
+				response.close();
+				response = shared.get(session).apply(request).asResponse();
+			}
+			return response;
+		}
+
+		SCIMTokenManager tokens = tokenManager();
+		String token = tokens.getToken(session);
+		SimpleHttp.Response response = request.auth(token).asResponse();
+		if (response.getStatus() == 401) {
+			/* Revoked or expired early, retry once with a new token */
+			response.close();
+			tokens.invalidate(token);
+			response = request.auth(tokens.getToken(session)).asResponse();
+		}
+		return response;
+	}
+
+	/* Escapes a value for a quoted filter string (RFC7644 3.4.2.2 uses JSON strings) */
+	static String filterValue(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private SCIMSearchRequest setupSearch(String username, String attribute, Projection projection) {
+		return setupSearch(username, attribute, "eq", projection);
+	}
+
+	private SCIMSearchRequest setupSearch(String username, String attribute, String operator, Projection projection) {
 		List<String> schemas = new ArrayList<String>();
 		SCIMSearchRequest search = new SCIMSearchRequest();
 		String filter;
@@ -256,8 +402,11 @@ public class Scim {
 		schemas.add(SCHEMA_API_MESSAGES_SEARCHREQUEST);
 		search.setSchemas(schemas);
 
-		filter = String.format("%s eq \"%s\"", attribute, username);
+		filter = String.format("%s %s \"%s\"", attribute, operator, filterValue(username));
 		search.setFilter(filter);
+		if (projection != null) {
+			search.setAttributes(attributes(projection));
+		}
 		logger.infov("filter: {0}", filter);
 		logger.infov("Schema: {0}",  SCHEMA_API_MESSAGES_SEARCHREQUEST);
 
@@ -295,9 +444,65 @@ public class Scim {
 		return intgdomain;
 	}
 
-	private SCIMUser getUserByAttr(String username, String attribute) {
-		SCIMSearchRequest newSearch = setupSearch(username, attribute);
+	/* Attributes sent for a projection, the full one also carries the indexed extra attributes */
+	private List<String> attributes(Projection projection) {
+		SCIMUserIndex index = factory.getUserIndex(model);
+		if (projection != Projection.FULL || index == null || index.getExtraAttributes().isEmpty()) {
+			return projection.getAttributes();
+		}
+		List<String> attributes = new ArrayList<String>(projection.getAttributes());
+		attributes.addAll(index.getExtraAttributes());
+		return attributes;
+	}
 
+	private String attributesQuery(Projection projection) {
+		return encode(String.join(",", attributes(projection)));
+	}
+
+	/* Full resources feed the local indexes */
+	private SCIMUser indexed(SCIMUser users) {
+		SCIMUserIndex index = factory.getUserIndex(model);
+		SCIMUserSearchIndex searchIndex = factory.getSearchIndex(model);
+		if ((index != null || searchIndex != null) && users != null && users.getResources() != null) {
+			for (SCIMUser.Resource user : users.getResources()) {
+				if (index != null) {
+					index.update(user);
+				}
+				if (searchIndex != null) {
+					searchIndex.update(user);
+				}
+			}
+		}
+		return users;
+	}
+
+	/* Users written by this provider are searchable right away */
+	private void indexWritten(SimpleHttp.Response response, SCIMUser.Resource user) throws IOException {
+		SCIMUserSearchIndex searchIndex = factory.getSearchIndex(model);
+		if (searchIndex != null && response != null && response.getStatus() < 300) {
+			searchIndex.update(user);
+		}
+	}
+
+	private SCIMUser getUserByAttr(String username, String attribute, Projection projection) {
+		SCIMSearchRequest newSearch = setupSearch(username, attribute, projection);
+		SCIMUser users = searchUsers(newSearch);
+		return projection == Projection.FULL ? indexed(users) : users;
+	}
+
+	/* Users whose attribute equals the value, attribute is a SCIM attribute path */
+	public SCIMUser getUsersByAttr(String attribute, String value) {
+		return getUserByAttr(value, attribute, Projection.FULL);
+	}
+
+	/* Full resource without the read-only groups, which a PUT ignores anyway */
+	private SCIMUser getUserForUpdate(String username) {
+		SCIMSearchRequest newSearch = setupSearch(username, "userName", null);
+		newSearch.setExcludedAttributes(Arrays.asList("groups"));
+		return searchUsers(newSearch);
+	}
+
+	private SCIMUser searchUsers(SCIMSearchRequest newSearch) {
 		String usersSearchUrl = "Users/.search";
 		SCIMUser user = null;
 
@@ -314,35 +519,290 @@ public class Scim {
 		return user;
 	}
 
+	/* Concurrent lookups of the same attribute value share a single backend request.
+	 * A result memoized with a wider projection also answers narrower lookups.
+	 */
+	private SCIMUser getUserByAttrCoalesced(String username, String attribute, Projection projection) {
+		Map<String, SCIMUser> results = sessionResults();
+		for (Projection wider : Projection.values()) {
+			if (wider.covers(projection)) {
+				SCIMUser result = results.get(projectionKey(attribute, username, wider));
+				if (result != null) {
+					return result;
+				}
+			}
+		}
+
+		String key = projectionKey(attribute, username, projection);
+		return sessionResult(key, () ->
+			factory.getRequestCoalescer().execute(key, () -> getUserByAttr(username, attribute, projection)));
+	}
+
+	private String projectionKey(String attribute, String username, Projection projection) {
+		return SCIMRequestCoalescer.key(model.getId(), attribute + ":" + projection.name(), username);
+	}
+
 	public SCIMUser getUserByUsername(String username) {
+		return getUserByUsername(username, Projection.FULL);
+	}
+
+	public SCIMUser getUserByUsername(String username, Projection projection) {
 		String attribute = "userName";
-		return getUserByAttr(username, attribute);
+		return getUserByAttrCoalesced(username, attribute, projection);
+	}
+
+	/* Resolves many users with "userName eq ... or userName eq ..." searches run in
+	 * parallel, sized after filter.maxResults. Results, found or not, are
+	 * memoized in the session so the
+	 * following getUserByUsername() calls of these users cost no request.
+	 * Returns the users found, by lower case userName.
+	 */
+	public Map<String, SCIMUser.Resource> getUsersByUsername(Collection<String> usernames) {
+		return getUsersByUsername(usernames, false);
+	}
+
+	/* Like getUsersByUsername() but throws when a search fails instead of
+	 * leaving its users out, so users missing from the result do not exist.
+	 */
+	public Map<String, SCIMUser.Resource> findUsersByUsername(Collection<String> usernames) {
+		return getUsersByUsername(usernames, true);
+	}
+
+	private Map<String, SCIMUser.Resource> getUsersByUsername(Collection<String> usernames, boolean strict) {
+		Map<String, SCIMUser> results = sessionResults();
+		Map<String, String> pending = new LinkedHashMap<String, String>();
+		Map<String, SCIMUser.Resource> found = new HashMap<String, SCIMUser.Resource>();
+
+		for (String username : usernames) {
+			SCIMUser memoized = results.get(projectionKey("userName", username, Projection.FULL));
+			if (memoized == null) {
+				pending.put(username.toLowerCase(), username);
+			} else if (memoized.getTotalResults() != null && memoized.getTotalResults() > 0) {
+				found.put(username.toLowerCase(), memoized.getResources().get(0));
+			}
+		}
+		if (pending.isEmpty()) {
+			return found;
+		}
+
+		Integer maxResults = getServiceProviderConfig().getFilter() == null ? null :
+			getServiceProviderConfig().getFilter().getMaxResults();
+		int batchSize = maxResults == null || maxResults <= 0 ? DEFAULT_BATCH_LOOKUP_SIZE : maxResults;
+
+		List<CompletableFuture<SCIMUser>> requests = new ArrayList<CompletableFuture<SCIMUser>>();
+		List<String> batch = new ArrayList<String>();
+		int length = 0;
+		for (String username : pending.values()) {
+			String term = String.format("userName eq \"%s\"", filterValue(username));
+			if (!batch.isEmpty() && (batch.size() >= batchSize || length + term.length() + 4 > MAX_FILTER_LENGTH)) {
+				requests.add(searchUsersAsync(batch));
+				batch = new ArrayList<String>();
+				length = 0;
+			}
+			batch.add(term);
+			length += term.length() + 4;
+		}
+		requests.add(searchUsersAsync(batch));
+
+		boolean failed = false;
+		for (CompletableFuture<SCIMUser> request : requests) {
+			SCIMUser users;
+			try {
+				users = indexed(request.join());
+			} catch (CompletionException e) {
+				if (strict) {
+					throw new IllegalStateException("Batch user lookup failed", e.getCause() == null ? e : e.getCause());
+				}
+				/* Left to the individual lookups */
+				failed = true;
+				logger.warnv("Batch user lookup failed: {0}", e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+				continue;
+			}
+			if (strict && users.getTotalResults() == null) {
+				throw new IllegalStateException("Batch user lookup returned no list response");
+			}
+			if (users.getResources() == null) {
+				continue;
+			}
+			for (SCIMUser.Resource user : users.getResources()) {
+				String username = pending.remove(user.getUserName().toLowerCase());
+				if (username != null) {
+					found.put(username.toLowerCase(), user);
+					results.put(projectionKey("userName", username, Projection.FULL), single(user));
+				}
+			}
+		}
+
+		if (!failed) {
+			for (String username : pending.values()) {
+				SCIMUser none = new SCIMUser();
+				none.setResources(new ArrayList<SCIMUser.Resource>());
+				none.setTotalResults(0);
+				results.put(projectionKey("userName", username, Projection.FULL), none);
+			}
+		}
+		return found;
+	}
+
+	private CompletableFuture<SCIMUser> searchUsersAsync(List<String> terms) {
+		List<String> schemas = new ArrayList<String>();
+		SCIMSearchRequest search = new SCIMSearchRequest();
+
+		schemas.add(SCHEMA_API_MESSAGES_SEARCHREQUEST);
+		search.setSchemas(schemas);
+		search.setFilter(String.join(" or ", terms));
+		search.setAttributes(attributes(Projection.FULL));
+		search.setCount(terms.size());
+
+		return clientRequestAsync("Users/.search", "POST", search);
+	}
+
+	/* A search result holding just this user, as returned by getUserByUsername() */
+	private static SCIMUser single(SCIMUser.Resource user) {
+		SCIMUser result = new SCIMUser();
+		List<SCIMUser.Resource> resources = new ArrayList<SCIMUser.Resource>();
+		resources.add(user);
+		result.setResources(resources);
+		result.setTotalResults(1);
+		return result;
+	}
+
+	public CompletableFuture<SCIMUser> getUserByUsernameAsync(String username) {
+		SCIMSearchRequest newSearch = setupSearch(username, "userName", Projection.FULL);
+		return clientRequestAsync("Users/.search", "POST", newSearch);
 	}
 
 	public SCIMUser getUserByEmail(String username) {
 		String attribute = "emails.value";
-		return getUserByAttr(username, attribute);
+		return getUserByAttr(username, attribute, Projection.FULL);
 	}
 
 	public SCIMUser getUserByFirstName(String username) {
 		String attribute = "name.givenName";
-		return getUserByAttr(username, attribute);
+		return getUserByAttr(username, attribute, Projection.FULL);
 	}
 
 	public SCIMUser getUserByLastName(String username) {
 		String attribute = "name.familyName";
-		return getUserByAttr(username, attribute);
+		return getUserByAttr(username, attribute, Projection.FULL);
+	}
+
+	/* Only totalResults is needed, count=0 returns no resources (RFC7644 3.4.2.4) */
+	public int getUsersCount() {
+		String usersUrl = String.format("Users?count=0&attributes=%s", Projection.ID.getQuery());
+		String key = SCIMRequestCoalescer.key(model.getId(), "GET", usersUrl);
+
+		SCIMUser users = sessionResult(key, () -> factory.getRequestCoalescer().execute(key, () -> getUserList(usersUrl)));
+		return users.getTotalResults() == null ? 0 : users.getTotalResults();
+	}
+
+	/* One page of the user list, startIndex is 1-based as per RFC7644 */
+	public SCIMUser getUsersPage(int startIndex, int count) {
+		return getUserList(String.format("Users?attributes=%s&startIndex=%d&count=%d",
+				attributesQuery(Projection.FULL), startIndex, count));
+	}
+
+	/* One page of the user list with cursor pagination (RFC 9865), an empty cursor starts the list */
+	public SCIMUser getUsersPage(String cursor, int count) {
+		return getUserList(String.format("Users?attributes=%s&cursor=%s&count=%d",
+				attributesQuery(Projection.FULL), encode(cursor), count));
+	}
+
+	/* One page of the user list, most recently modified first, requires sort support */
+	public SCIMUser getUsersRecentlyModifiedPage(int startIndex, int count) {
+		return getUserList(String.format("Users?attributes=%s&sortBy=meta.lastModified&sortOrder=descending&startIndex=%d&count=%d",
+				attributesQuery(Projection.FULL), startIndex, count));
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private SCIMUser getUserList(String usersUrl) {
+		SCIMUser users = null;
+
+		SimpleHttp.Response response;
+		try {
+			response = clientRequest(usersUrl, "GET", null);
+			users = response.asJson(SCIMUser.class);
+			response.close();
+		} catch (Exception e) {
+			logger.errorv("Error: {0}", e.getMessage());
+			throw new RuntimeException(e);
+		}
+
+		return indexed(users);
+	}
+
+	/* Server capabilities, fetched once per component and kept by the factory */
+	public SCIMServiceProviderConfig getServiceProviderConfig() {
+		Map<String, SCIMServiceProviderConfig> configs = factory.getServiceProviderConfigs();
+		SCIMServiceProviderConfig config = configs.get(model.getId());
+
+		if (config != null) {
+			return config;
+		}
+
+		SimpleHttp.Response response;
+		try {
+			response = clientRequest("ServiceProviderConfig", "GET", null);
+			config = response.asJson(SCIMServiceProviderConfig.class);
+			response.close();
+		} catch (Exception e) {
+			/* Not cached, assume no optional features until the server answers */
+			logger.warnv("Failed to retrieve ServiceProviderConfig: {0}", e.getMessage());
+			return new SCIMServiceProviderConfig();
+		}
+
+		configs.put(model.getId(), config);
+		return config;
+	}
+
+	/* One page of the users modified after the given time */
+	public SCIMUser getUsersModifiedSincePage(Date since, int startIndex, int count) {
+		SCIMSearchRequest newSearch = setupModifiedSinceSearch(since, count);
+		newSearch.setStartIndex(startIndex);
+		return indexed(searchUsers(newSearch));
+	}
+
+	public SCIMUser getUsersModifiedSincePage(Date since, String cursor, int count) {
+		SCIMSearchRequest newSearch = setupModifiedSinceSearch(since, count);
+		newSearch.setCursor(cursor);
+		return indexed(searchUsers(newSearch));
+	}
+
+	private SCIMSearchRequest setupModifiedSinceSearch(Date since, int count) {
+		SCIMSearchRequest newSearch = setupSearch(DateTimeFormatter.ISO_INSTANT.format(since.toInstant()),
+				"meta.lastModified", "gt", Projection.FULL);
+		newSearch.setCount(count);
+		return newSearch;
 	}
 
 	public SimpleHttp.Response deleteUser(String username) {
-		SCIMUser userobj = getUserByUsername(username);
+		SCIMUser userobj = getUserByUsername(username, Projection.ID);
 		SCIMUser.Resource user = userobj.getResources().get(0);
 
 		String userIdUrl = String.format("Users/%s", user.getId());
+		clearSessionResults();
 
 		SimpleHttp.Response response;
 		try {
 			response = clientRequest(userIdUrl, "DELETE", null);
+			/* A rejected delete leaves the user searchable */
+			if (response.getStatus() / 100 == 2) {
+				SCIMUserIndex index = factory.getUserIndex(model);
+				if (index != null) {
+					index.remove(username);
+				}
+				SCIMUserSearchIndex searchIndex = factory.getSearchIndex(model);
+				if (searchIndex != null) {
+					searchIndex.remove(username);
+				}
+			}
 		} catch (Exception e) {
 			logger.errorv("Error: {0}", e.getMessage());
 			throw new RuntimeException(e);
@@ -355,7 +815,7 @@ public class Scim {
 	 * here we provide mostly dummy values which will be replaced by actual user input via
 	 * appropriate setter methods once in the returned UserModel
 	 */
-	private SCIMUser.Resource setupUser(String username) {
+	SCIMUser.Resource setupUser(String username) {
 		SCIMUser.Resource user = new SCIMUser.Resource();
 		SCIMUser.Resource.Name name = new SCIMUser.Resource.Name();
 		SCIMUser.Resource.Email email = new SCIMUser.Resource.Email();
@@ -384,14 +844,76 @@ public class Scim {
 		return user;
 	}
 
+	/* Existing Keycloak user, for the export of local users */
+	SCIMUser.Resource setupUser(UserModel local) {
+		SCIMUser.Resource user = setupUser(local.getUsername());
+		if (local.getFirstName() != null) {
+			setUserAttr(user, "firstName", local.getFirstName());
+		}
+		if (local.getLastName() != null) {
+			setUserAttr(user, "lastName", local.getLastName());
+		}
+		/* Unlike names, a dummy email would collide between users */
+		if (local.getEmail() != null) {
+			user.getEmails().get(0).setValue(local.getEmail());
+		} else {
+			user.setEmails(new ArrayList<SCIMUser.Resource.Email>());
+		}
+		user.setActive(local.isEnabled());
+		user.setExternalId(local.getId());
+		return user;
+	}
+
+	/* Resolves to the HTTP status of the creation */
+	public CompletableFuture<Integer> createUserAsync(SCIMUser.Resource user) {
+		return clientRequestAsync("Users", "POST", user, SimpleHttp.Response::getStatus);
+	}
+
+	/* Creates the users with a single /Bulk request, operations carry the username as bulkId.
+	 * Resolves to null when the request as a whole is rejected.
+	 */
+	public CompletableFuture<SCIMBulkResponse> bulkCreateUsersAsync(List<SCIMUser.Resource> users) {
+		List<SCIMBulkRequest.Operation> operations = new ArrayList<SCIMBulkRequest.Operation>();
+		for (SCIMUser.Resource user : users) {
+			SCIMBulkRequest.Operation operation = new SCIMBulkRequest.Operation();
+			operation.setMethod("POST");
+			operation.setBulkId(user.getUserName());
+			operation.setPath("/Users");
+			operation.setData(user);
+			operations.add(operation);
+		}
+
+		SCIMBulkRequest request = new SCIMBulkRequest();
+		request.setSchemas(Arrays.asList(SCHEMA_API_MESSAGES_BULKREQUEST));
+		request.setOperations(operations);
+
+		return clientRequestAsync("Bulk", "POST", request, response -> {
+			if (response.getStatus() != 200) {
+				logger.warnv("Unexpected bulk status code {0}", response.getStatus());
+				return null;
+			}
+			return response.asJson(SCIMBulkResponse.class);
+		});
+	}
+
 	public SimpleHttp.Response createUser(String username) {
+		return createUser(username, Collections.<String, List<String>>emptyMap());
+	}
+
+	/* Create the user with the given attributes set in place of the dummy values */
+	public SimpleHttp.Response createUser(String username, Map<String, List<String>> attributes) {
 		String usersUrl = "Users";
 
 		SCIMUser.Resource newUser = setupUser(username);
+		for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+			setUserAttr(newUser, attribute.getKey(), attribute.getValue().get(0));
+		}
+		clearSessionResults();
 
 		SimpleHttp.Response response;
 		try {
 			response = clientRequest(usersUrl, "POST", newUser);
+			indexWritten(response, newUser);
 		} catch (Exception e) {
 			logger.errorv("Error: {0}", e.getMessage());
 			return null;
@@ -400,7 +922,12 @@ public class Scim {
 		return response;
 	}
 
-	private void setUserAttr(SCIMUser.Resource user, String attr, String value) {
+	/* Attributes setUserAttr() writes to SCIM */
+	static boolean isWritableAttr(String attr) {
+		return "firstName".equals(attr) || "lastName".equals(attr) || "email".equals(attr);
+	}
+
+	void setUserAttr(SCIMUser.Resource user, String attr, String value) {
 		SCIMUser.Resource.Name name = user.getName();
 		SCIMUser.Resource.Email email = new SCIMUser.Resource.Email();
 		List<SCIMUser.Resource.Email> emails = new ArrayList<SCIMUser.Resource.Email>();
@@ -415,10 +942,15 @@ public class Scim {
 			user.setName(name);
 			break;
 		case "email":
-			email.setValue(value);
-			emails.add(email);
+			if (value != null) {
+				email.setValue(value);
+				emails.add(email);
+			}
 			user.setEmails(emails);
 			break;
+		case "active":
+			user.setActive(Boolean.valueOf(value));
+			break;
 		case "userName":
 			/* Changing username not supported */
 			break;
@@ -431,22 +963,34 @@ public class Scim {
 	public SimpleHttp.Response updateUser(Scim scim, String username, String attr, List<String> values) {
 		logger.info(String.format("Updating %s attribute for %s", attr, username));
 		/* Get existing user */
-		if (scim.csrfAuthLogin() == null) {
+		if (scim.login() == null) {
 			logger.error("Error during login");
 		}
 
-		SCIMUser userobj = getUserByUsername(username);
+		return updateUser(username, Collections.singletonMap(attr, values));
+	}
+
+	/* Apply several attribute changes with a single PUT */
+	public SimpleHttp.Response updateUser(String username, Map<String, List<String>> attributes) {
+		/* Not coalesced, the returned resource is modified below */
+		SCIMUser userobj = getUserForUpdate(username);
 		SCIMUser.Resource user = userobj.getResources().get(0);
 
 		/* Modify attributes */
-		setUserAttr(user, attr, values.get(0));
+		for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+			/* No value removes the attribute */
+			List<String> values = attribute.getValue();
+			setUserAttr(user, attribute.getKey(), values == null || values.isEmpty() ? null : values.get(0));
+		}
 
 		/* Update user in SCIM */
 		String modifyUrl = String.format("Users/%s", user.getId());
+		clearSessionResults();
 
 		SimpleHttp.Response response;
 		try {
 			response = clientRequest(modifyUrl, "PUT", user);
+			indexWritten(response, user);
 		} catch (Exception e) {
 			logger.errorv("Error: {0}", e.getMessage());
 			throw new RuntimeException(e);
@@ -456,19 +1000,38 @@ public class Scim {
 	}
 
 	public boolean getActive(SCIMUser user) {
-		return Boolean.valueOf(user.getResources().get(0).getActive());
+		return getActive(user.getResources().get(0));
+	}
+
+	public boolean getActive(SCIMUser.Resource user) {
+		return Boolean.valueOf(user.getActive());
 	}
 
 	public String getEmail(SCIMUser user) {
-		return user.getResources().get(0).getEmails().get(0).getValue();
+		return getEmail(user.getResources().get(0));
+	}
+
+	public String getEmail(SCIMUser.Resource user) {
+		if (user.getEmails() == null || user.getEmails().isEmpty()) {
+			return null;
+		}
+		return user.getEmails().get(0).getValue();
 	}
 
 	public String getFirstName(SCIMUser user) {
-		return user.getResources().get(0).getName().getGivenName();
+		return getFirstName(user.getResources().get(0));
+	}
+
+	public String getFirstName(SCIMUser.Resource user) {
+		return user.getName().getGivenName();
 	}
 
 	public String getLastName(SCIMUser user) {
-		return user.getResources().get(0).getName().getFamilyName();
+		return getLastName(user.getResources().get(0));
+	}
+
+	public String getLastName(SCIMUser.Resource user) {
+		return user.getName().getFamilyName();
 	}
 
 	public String getUserName(SCIMUser user) {
@@ -480,9 +1043,17 @@ public class Scim {
 	}
 
 	public List<String> getGroupsList(SCIMUser user) {
+		return getGroupsList(user.getResources().get(0));
+	}
+
+	public List<String> getGroupsList(SCIMUser.Resource user) {
 		List<SCIMUser.Resource.Group> groups = new ArrayList<SCIMUser.Resource.Group>();
 		List<String> groupnames = new ArrayList<String>();
-		groups = user.getResources().get(0).getGroups();
+		groups = user.getGroups();
+
+		if (groups == null) {
+			return groupnames;
+		}
 
 		for (int i = 0; i < groups.size(); i++) {
 			logger.info("Retrieving group: " + groups.get(i).getDisplay());
@@ -16,15 +16,30 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonPropertyOrder({
 	"schemas",
-	"filter"
+	"attributes",
+	"excludedAttributes",
+	"filter",
+	"startIndex",
+	"cursor",
+	"count"
 })
 @Generated("jsonschema2pojo")
 public class SCIMSearchRequest {
 
 	@JsonProperty("schemas")
 	private List<String> schemas = null;
+	@JsonProperty("attributes")
+	private List<String> attributes = null;
+	@JsonProperty("excludedAttributes")
+	private List<String> excludedAttributes = null;
 	@JsonProperty("filter")
 	private String filter;
+	@JsonProperty("startIndex")
+	private Integer startIndex;
+	@JsonProperty("cursor")
+	private String cursor;
+	@JsonProperty("count")
+	private Integer count;
 	@JsonIgnore
 	private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
@@ -38,6 +53,26 @@ public class SCIMSearchRequest {
 		this.schemas = schemas;
 	}
 
+	@JsonProperty("attributes")
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	@JsonProperty("attributes")
+	public void setAttributes(List<String> attributes) {
+		this.attributes = attributes;
+	}
+
+	@JsonProperty("excludedAttributes")
+	public List<String> getExcludedAttributes() {
+		return excludedAttributes;
+	}
+
+	@JsonProperty("excludedAttributes")
+	public void setExcludedAttributes(List<String> excludedAttributes) {
+		this.excludedAttributes = excludedAttributes;
+	}
+
 	@JsonProperty("filter")
 	public String getFilter() {
 		return filter;
@@ -48,6 +83,36 @@ public class SCIMSearchRequest {
 		this.filter = filter;
 	}
 
+	@JsonProperty("startIndex")
+	public Integer getStartIndex() {
+		return startIndex;
+	}
+
+	@JsonProperty("startIndex")
+	public void setStartIndex(Integer startIndex) {
+		this.startIndex = startIndex;
+	}
+
+	@JsonProperty("cursor")
+	public String getCursor() {
+		return cursor;
+	}
+
+	@JsonProperty("cursor")
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	@JsonProperty("count")
+	public Integer getCount() {
+		return count;
+	}
+
+	@JsonProperty("count")
+	public void setCount(Integer count) {
+		this.count = count;
+	}
+
 	@JsonAnyGetter
 	public Map<String, Object> getAdditionalProperties() {
 		return this.additionalProperties;
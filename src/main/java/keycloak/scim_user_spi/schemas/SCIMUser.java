@@ -18,7 +18,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 	"itemsPerPage",
 	"schemas",
 	"startIndex",
-	"totalResults"
+	"totalResults",
+	"nextCursor"
 })
 @Generated("jsonschema2pojo")
 public class SCIMUser {
@@ -33,6 +34,8 @@ public class SCIMUser {
 	private Integer startIndex;
 	@JsonProperty("totalResults")
 	private Integer totalResults;
+	@JsonProperty("nextCursor")
+	private String nextCursor;
 	@JsonIgnore
 	private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
@@ -86,6 +89,16 @@ public class SCIMUser {
 		this.totalResults = totalResults;
 	}
 
+	@JsonProperty("nextCursor")
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	@JsonProperty("nextCursor")
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
 	@JsonAnyGetter
 	public Map<String, Object> getAdditionalProperties() {
 		return this.additionalProperties;
@@ -100,6 +113,7 @@ public class SCIMUser {
 	@JsonPropertyOrder({
 		"active",
 		"emails",
+		"externalId",
 		"groups",
 		"id",
 		"meta",
@@ -114,6 +128,8 @@ public class SCIMUser {
 		private Boolean active;
 		@JsonProperty("emails")
 		private List<Email> emails = null;
+		@JsonProperty("externalId")
+		private String externalId;
 		@JsonProperty("groups")
 		private List<Group> groups = null;
 		@JsonProperty("id")
@@ -149,6 +165,16 @@ public class SCIMUser {
 			this.emails = emails;
 		}
 
+		@JsonProperty("externalId")
+		public String getExternalId() {
+			return externalId;
+		}
+
+		@JsonProperty("externalId")
+		public void setExternalId(String externalId) {
+			this.externalId = externalId;
+		}
+
 		@JsonProperty("groups")
 		public List<Group> getGroups() {
 			return groups;
@@ -281,19 +307,35 @@ public class SCIMUser {
 
 		@JsonInclude(JsonInclude.Include.NON_NULL)
 		@JsonPropertyOrder({
+			"lastModified",
 			"location",
-			"resourceType"
+			"resourceType",
+			"version"
 		})
 		@Generated("jsonschema2pojo")
 		public static class Meta {
 
+			@JsonProperty("lastModified")
+			private String lastModified;
 			@JsonProperty("location")
 			private String location;
 			@JsonProperty("resourceType")
 			private String resourceType;
+			@JsonProperty("version")
+			private String version;
 			@JsonIgnore
 			private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
+			@JsonProperty("lastModified")
+			public String getLastModified() {
+				return lastModified;
+			}
+
+			@JsonProperty("lastModified")
+			public void setLastModified(String lastModified) {
+				this.lastModified = lastModified;
+			}
+
 			@JsonProperty("location")
 			public String getLocation() {
 				return location;
@@ -314,6 +356,16 @@ public class SCIMUser {
 				this.resourceType = resourceType;
 			}
 
+			@JsonProperty("version")
+			public String getVersion() {
+				return version;
+			}
+
+			@JsonProperty("version")
+			public void setVersion(String version) {
+				this.version = version;
+			}
+
 			@JsonAnyGetter
 			public Map<String, Object> getAdditionalProperties() {
 				return this.additionalProperties;
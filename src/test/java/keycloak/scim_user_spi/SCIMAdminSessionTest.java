@@ -0,0 +1,74 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+public class SCIMAdminSessionTest {
+
+	private static ComponentModel model(String keepAlive) {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		if (keepAlive != null) {
+			model.getConfig().putSingle("sessionkeepalive", keepAlive);
+		}
+		return model;
+	}
+
+	private static Map<String, String> values() {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		values.put("csrftoken", "csrf");
+		values.put("sessionid", "session");
+		return values;
+	}
+
+	@Test
+	public void zeroDisablesTheKeepAlive() {
+		assertEquals(300, SCIMAdminSession.keepAlive(model(null)));
+		assertEquals(300, SCIMAdminSession.keepAlive(model("")));
+		assertEquals(300, SCIMAdminSession.keepAlive(model("-1")));
+		assertEquals(300, SCIMAdminSession.keepAlive(model("often")));
+		assertEquals(0, SCIMAdminSession.keepAlive(model("0")));
+		assertEquals(120, SCIMAdminSession.keepAlive(model("120")));
+	}
+
+	@Test
+	public void renewsAFifthOfTheLifetimeBeforeExpiry() {
+		SCIMAdminSession session = new SCIMAdminSession(null, model("0"), null);
+		long now = 1000000;
+
+		SCIMAdminSession.Cookies cookies = session.loggedIn(values(), now, 1000);
+		assertEquals(now + 800 * 1000, session.nextRenewal(cookies));
+		assertEquals(800 * 1000, session.nextCheck(now));
+
+		/* Short sessions are still renewed a minute ahead */
+		cookies = session.loggedIn(values(), now, 200);
+		assertEquals(now + 140 * 1000, session.nextRenewal(cookies));
+	}
+
+	@Test
+	public void keepAliveComesBeforeTheRenewal() {
+		SCIMAdminSession session = new SCIMAdminSession(null, model("120"), null);
+		long now = 1000000;
+
+		session.loggedIn(values(), now, 1000);
+		assertEquals(120 * 1000, session.nextCheck(now));
+		assertEquals(60 * 1000, session.nextCheck(now + 60 * 1000));
+	}
+
+	@Test
+	public void sessionWithoutExpiryOnlyNeedsKeepAlive() {
+		SCIMAdminSession session = new SCIMAdminSession(null, model("0"), null);
+		session.loggedIn(values(), 1000000, -1);
+		assertEquals(-1, session.nextCheck(1000000));
+
+		session = new SCIMAdminSession(null, model(null), null);
+		session.loggedIn(values(), 1000000, -1);
+		assertEquals(300 * 1000, session.nextCheck(1000000));
+	}
+}
@@ -0,0 +1,109 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMOffHeapUserCacheTest {
+
+	private static SCIMUser.Resource user(String username, String givenName) {
+		SCIMUser.Resource resource = new SCIMUser.Resource();
+		resource.setUserName(username);
+		SCIMUser.Resource.Name name = new SCIMUser.Resource.Name();
+		name.setGivenName(givenName);
+		resource.setName(name);
+		return resource;
+	}
+
+	private static String givenName(SCIMUserCache cache, String username) {
+		SCIMUser.Resource resource = cache.get(username);
+		return resource == null ? null : resource.getName().getGivenName();
+	}
+
+	@Test
+	public void putsOverwritesAndRemoves() {
+		SCIMOffHeapUserCache cache = new SCIMOffHeapUserCache(300, 64 * 1024);
+
+		cache.put(user("Alice", "first"));
+		cache.put(user("bob", "bob"));
+		assertEquals("first", givenName(cache, "alice"));
+		assertEquals(2, cache.size());
+
+		cache.put(user("alice", "second"));
+		assertEquals("second", givenName(cache, "ALICE"));
+		assertEquals(2, cache.size());
+
+		cache.remove("Alice");
+		assertNull(cache.get("alice"));
+		assertEquals(1, cache.size());
+		assertEquals(Collections.singletonList("bob"), cache.usernames());
+	}
+
+	@Test
+	public void compactionKeepsTheLatestVersions() {
+		/* A few dozen entries, overwritten until the buffer wrapped many times */
+		SCIMOffHeapUserCache cache = new SCIMOffHeapUserCache(300, 4096);
+
+		for (int round = 0; round < 200; round++) {
+			for (int i = 0; i < 10; i++) {
+				cache.put(user("user" + i, "v" + round));
+			}
+			if (round % 7 == 0) {
+				cache.remove("user3");
+			}
+		}
+
+		assertEquals(10, cache.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("v199", givenName(cache, "user" + i));
+		}
+		assertEquals(10, new HashSet<String>(cache.usernames()).size());
+	}
+
+	@Test
+	public void usersLargerThanTheBufferAreNotCached() {
+		SCIMOffHeapUserCache cache = new SCIMOffHeapUserCache(300, 256);
+		char[] name = new char[512];
+		Arrays.fill(name, 'x');
+
+		cache.put(user("alice", "small"));
+		cache.put(user("alice", new String(name)));
+
+		/* The previous version is not served either */
+		assertNull(cache.get("alice"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void expiredEntriesAreNotServed() {
+		SCIMOffHeapUserCache cache = new SCIMOffHeapUserCache(-1, 4096);
+
+		cache.put(user("alice", "first"));
+		assertNull(cache.get("alice"));
+		assertTrue(cache.usernames().isEmpty());
+	}
+
+	@Test
+	public void clearedCacheIsReusable() {
+		SCIMOffHeapUserCache cache = new SCIMOffHeapUserCache(300, 4096);
+		cache.put(user("alice", "first"));
+
+		cache.clear();
+		assertNull(cache.get("alice"));
+		assertEquals(0, cache.size());
+
+		cache.put(user("bob", "bob"));
+		assertEquals("bob", givenName(cache, "bob"));
+		assertTrue(cache.hasSettings(300, 4096));
+		assertFalse(cache.hasSettings(300, 8192));
+	}
+}
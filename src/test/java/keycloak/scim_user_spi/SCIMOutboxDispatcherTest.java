@@ -0,0 +1,171 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+public class SCIMOutboxDispatcherTest {
+
+	private String dataDir;
+	private Path dir;
+	private SCIMUserStorageProviderFactory factory;
+	private SCIMOutbox outbox;
+
+	/* Records the users sent instead of calling the server */
+	private static class FakeDispatcher extends SCIMOutboxDispatcher {
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		int failures;
+		RuntimeException error;
+		CountDownLatch blockFirst;
+		final CountDownLatch firstStarted = new CountDownLatch(1);
+
+		FakeDispatcher(SCIMUserStorageProviderFactory factory, int failures) {
+			super(factory, null);
+			this.failures = failures;
+		}
+
+		@Override
+		void drainDue(SCIMOutbox outbox) {
+			for (String username : outbox.due(System.currentTimeMillis())) {
+				dispatch(null, outbox, username);
+			}
+		}
+
+		@Override
+		void createDone(SCIMOutbox outbox, String username) {
+		}
+
+		@Override
+		Result send(Scim scim, String username, List<SCIMOutbox.Entry> entries, List<SCIMOutbox.Entry> batch) {
+			batch.add(entries.get(0));
+			firstStarted.countDown();
+			if (blockFirst != null) {
+				try {
+					blockFirst.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				blockFirst = null;
+			}
+			if (error != null) {
+				throw error;
+			}
+			if (failures > 0) {
+				failures--;
+				return Result.RETRY;
+			}
+			sent.add(username);
+			return Result.SENT;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = System.getProperty("jboss.server.data.dir");
+		dir = Files.createTempDirectory("scim-outbox");
+		System.setProperty("jboss.server.data.dir", dir.toString());
+
+		ComponentModel model = new ComponentModel();
+		model.setId(UUID.randomUUID().toString());
+		model.setName("scim");
+		factory = new SCIMUserStorageProviderFactory();
+		outbox = SCIMOutbox.open(model);
+		factory.getOutboxes().put(model.getId(), outbox);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		outbox.close();
+		if (dataDir == null) {
+			System.clearProperty("jboss.server.data.dir");
+		} else {
+			System.setProperty("jboss.server.data.dir", dataDir);
+		}
+	}
+
+	private static void await(FakeDispatcher dispatcher, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.sent.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	public void retriesAFailedSendWithoutAnotherWrite() throws Exception {
+		FakeDispatcher dispatcher = new FakeDispatcher(factory, 1);
+		try {
+			outbox.append(SCIMOutbox.Operation.DELETE, "alice", null, null);
+			dispatcher.wakeUp(outbox);
+
+			await(dispatcher, 1);
+			assertEquals(Collections.singletonList("alice"), dispatcher.sent);
+			assertTrue(outbox.isEmpty());
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void wakeUpDuringADrainIsNotLost() throws Exception {
+		FakeDispatcher dispatcher = new FakeDispatcher(factory, 0);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.blockFirst = release;
+		try {
+			outbox.append(SCIMOutbox.Operation.DELETE, "alice", null, null);
+			dispatcher.wakeUp(outbox);
+			assertTrue(dispatcher.firstStarted.await(5, TimeUnit.SECONDS));
+
+			/* Journaled while alice is being sent */
+			outbox.append(SCIMOutbox.Operation.DELETE, "bob", null, null);
+			dispatcher.wakeUp(outbox);
+			release.countDown();
+
+			await(dispatcher, 2);
+			assertEquals(2, dispatcher.sent.size());
+			assertTrue(outbox.isEmpty());
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void dropsEntriesThatCannotBeSent() throws Exception {
+		FakeDispatcher dispatcher = new FakeDispatcher(factory, 0);
+		dispatcher.error = new IndexOutOfBoundsException("Index 0 out of bounds for length 0");
+		try {
+			outbox.append(SCIMOutbox.Operation.UPDATE, "alice", "email", Collections.<String>emptyList());
+			dispatcher.wakeUp(outbox);
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!outbox.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertTrue(outbox.isEmpty());
+			assertTrue(dispatcher.sent.isEmpty());
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void retriesRequestFailures() {
+		assertEquals(SCIMOutboxDispatcher.Result.RETRY,
+				SCIMOutboxDispatcher.classify(new RuntimeException(new IOException("refused"))));
+		assertEquals(SCIMOutboxDispatcher.Result.DROP,
+				SCIMOutboxDispatcher.classify(new IllegalArgumentException("bad entry")));
+	}
+}
@@ -0,0 +1,108 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+public class SCIMOutboxTest {
+
+	private String dataDir;
+	private ComponentModel model;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = System.getProperty("jboss.server.data.dir");
+		Path dir = Files.createTempDirectory("scim-outbox");
+		System.setProperty("jboss.server.data.dir", dir.toString());
+
+		model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+	}
+
+	@After
+	public void tearDown() {
+		if (dataDir == null) {
+			System.clearProperty("jboss.server.data.dir");
+		} else {
+			System.setProperty("jboss.server.data.dir", dataDir);
+		}
+	}
+
+	@Test
+	public void replaysThePendingEntriesAfterARestart() throws Exception {
+		SCIMOutbox outbox = SCIMOutbox.open(model);
+		outbox.append(SCIMOutbox.Operation.CREATE, "alice", null, null);
+		outbox.append(SCIMOutbox.Operation.UPDATE, "alice", "email", Arrays.asList("a=b&c@example.com"));
+		outbox.append(SCIMOutbox.Operation.DELETE, "bob", null, null);
+		outbox.append(SCIMOutbox.Operation.UPDATE, "carol", "lastName", Collections.singletonList("O'Hara \u00e9"));
+		outbox.done("alice", outbox.entries("alice").subList(0, 1));
+		outbox.done("bob", outbox.entries("bob"));
+		outbox.close();
+
+		SCIMOutbox replayed = SCIMOutbox.open(model);
+		try {
+			assertEquals(2, replayed.size());
+			assertFalse(replayed.hasPending("bob"));
+			assertEquals(Arrays.asList("alice", "carol"), replayed.due(System.currentTimeMillis()));
+
+			List<SCIMOutbox.Entry> alice = replayed.entries("alice");
+			assertEquals(1, alice.size());
+			assertEquals(SCIMOutbox.Operation.UPDATE, alice.get(0).operation);
+			assertEquals("email", alice.get(0).attribute);
+			assertEquals(Arrays.asList("a=b&c@example.com"), alice.get(0).values);
+			assertEquals(Collections.singletonList("O'Hara \u00e9"), replayed.entries("carol").get(0).values);
+		} finally {
+			replayed.close();
+		}
+	}
+
+	@Test
+	public void failedUsersAreBackedOff() throws Exception {
+		SCIMOutbox outbox = SCIMOutbox.open(model);
+		try {
+			outbox.append(SCIMOutbox.Operation.DELETE, "alice", null, null);
+			long now = System.currentTimeMillis();
+
+			assertEquals(1, outbox.failed("alice", now));
+			assertTrue(outbox.due(now).isEmpty());
+			assertTrue(outbox.nextDue() > now);
+			assertEquals(Collections.singletonList("alice"), outbox.due(outbox.nextDue()));
+
+			outbox.done("alice", outbox.entries("alice"));
+			assertTrue(outbox.isEmpty());
+			assertEquals(-1, outbox.nextDue());
+		} finally {
+			outbox.close();
+		}
+	}
+
+	@Test
+	public void deletedJournalIsNotReplayed() throws Exception {
+		SCIMOutbox outbox = SCIMOutbox.open(model);
+		outbox.append(SCIMOutbox.Operation.DELETE, "alice", null, null);
+		outbox.close();
+		assertTrue(SCIMOutbox.exists(model));
+
+		SCIMOutbox.delete(model);
+		assertFalse(SCIMOutbox.exists(model));
+		SCIMOutbox reopened = SCIMOutbox.open(model);
+		try {
+			assertTrue(reopened.isEmpty());
+			assertTrue(reopened.entries("alice").isEmpty());
+		} finally {
+			reopened.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMSeedFileTest {
+
+	private String dataDir;
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = System.getProperty("jboss.server.data.dir");
+		dir = Files.createTempDirectory("scim-seed");
+		System.setProperty("jboss.server.data.dir", dir.toString());
+	}
+
+	@After
+	public void tearDown() {
+		if (dataDir == null) {
+			System.clearProperty("jboss.server.data.dir");
+		} else {
+			System.setProperty("jboss.server.data.dir", dataDir);
+		}
+	}
+
+	private Path write(String name, String content) throws IOException {
+		return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<String> readAll(Path file, int count) throws IOException {
+		List<String> usernames = new ArrayList<String>();
+		try (SCIMSeedFile seed = SCIMSeedFile.open(file)) {
+			List<SCIMUser.Resource> page;
+			while (!(page = seed.next(count)).isEmpty()) {
+				assertTrue(page.size() <= count);
+				for (SCIMUser.Resource resource : page) {
+					usernames.add(resource.getUserName());
+				}
+			}
+		}
+		return usernames;
+	}
+
+	@Test
+	public void readsTheResourcesOfAListResponse() throws Exception {
+		Path file = write("users.json", "{\"schemas\": [\"urn:ietf:params:scim:api:messages:2.0:ListResponse\"],"
+				+ " \"totalResults\": 3, \"extra\": {\"Resources\": []},"
+				+ " \"Resources\": [{\"userName\": \"a\"}, {\"userName\": \"b\", \"emails\": []}, {\"userName\": \"c\"}]}");
+
+		assertEquals(Arrays.asList("a", "b", "c"), readAll(file, 2));
+	}
+
+	@Test
+	public void readsOneUserPerLine() throws Exception {
+		Path file = write("users.ndjson", "{\"userName\": \"a\"}\n{\"userName\": \"b\"}\n\n{\"userName\": \"c\"}\n");
+
+		assertEquals(Arrays.asList("a", "b", "c"), readAll(file, 1));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAnythingButUsers() throws Exception {
+		readAll(write("users.jsonl", "{\"userName\": \"a\"}\n[1]\n"), 10);
+	}
+
+	@Test
+	public void tracksTheNewestModification() throws Exception {
+		Path file = write("users.jsonl", "{\"userName\": \"a\", \"meta\": {\"lastModified\": \"2024-05-01T10:00:00Z\"}}\n"
+				+ "{\"userName\": \"b\", \"meta\": {\"lastModified\": \"2024-05-02T10:00:00+02:00\"}}\n"
+				+ "{\"userName\": \"c\", \"meta\": {\"lastModified\": \"yesterday\"}}\n");
+
+		try (SCIMSeedFile seed = SCIMSeedFile.open(file)) {
+			assertNull(seed.getLastModified());
+			assertEquals(3, seed.next(10).size());
+			assertEquals(3, seed.getRead());
+			assertEquals(OffsetDateTime.parse("2024-05-02T08:00:00Z").toInstant(), seed.getLastModified().toInstant());
+		}
+	}
+
+	/* Realm keeping its attributes in a map, as shared by the cluster nodes */
+	private static RealmModel realm(Map<String, String> attributes) {
+		return (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(), new Class<?>[] { RealmModel.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], String.valueOf(args[1]));
+						return null;
+					case "removeAttribute":
+						attributes.remove(args[0]);
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void seedsAgainOnlyWhenTheFileChanged() throws Exception {
+		Path file = write("users.jsonl", "{\"userName\": \"a\"}\n");
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.getConfig().putSingle("seedfile", file.toString());
+		Map<String, String> attributes = new HashMap<String, String>();
+
+		assertEquals(file, SCIMSeedFile.pending(realm(attributes), model));
+		SCIMSeedFile.imported(realm(attributes), model, file);
+		assertTrue(attributes.containsKey("scim-seed-scim"));
+		/* Another node sees the same realm */
+		assertNull(SCIMSeedFile.pending(realm(attributes), model));
+
+		write("users.jsonl", "{\"userName\": \"a\"}\n{\"userName\": \"b\"}\n");
+		assertEquals(file, SCIMSeedFile.pending(realm(attributes), model));
+
+		SCIMSeedFile.delete(realm(attributes), model);
+		assertTrue(attributes.isEmpty());
+	}
+}
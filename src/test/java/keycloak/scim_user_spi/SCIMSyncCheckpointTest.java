@@ -0,0 +1,86 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+public class SCIMSyncCheckpointTest {
+
+	private String dataDir;
+	private ComponentModel model;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = System.getProperty("jboss.server.data.dir");
+		Path dir = Files.createTempDirectory("scim-checkpoint");
+		System.setProperty("jboss.server.data.dir", dir.toString());
+
+		model = new ComponentModel();
+		model.setId("scim");
+	}
+
+	@After
+	public void tearDown() {
+		if (dataDir == null) {
+			System.clearProperty("jboss.server.data.dir");
+		} else {
+			System.setProperty("jboss.server.data.dir", dataDir);
+		}
+	}
+
+	@Test
+	public void watermarkOnlyPassesContiguousBatches() {
+		SCIMSyncCheckpoint checkpoint = SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER);
+
+		checkpoint.committed(101, 201);
+		checkpoint.committed(201, 301);
+		assertEquals(1, checkpoint.getStartIndex());
+		assertEquals(1, SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER).getStartIndex());
+
+		checkpoint.committed(1, 101);
+		assertEquals(301, checkpoint.getStartIndex());
+
+		/* Already below the watermark */
+		checkpoint.committed(51, 101);
+		assertEquals(301, checkpoint.getStartIndex());
+
+		SCIMSyncCheckpoint resumed = SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER);
+		assertEquals(301, resumed.getStartIndex());
+		assertEquals(checkpoint.getGeneration(), resumed.getGeneration());
+	}
+
+	@Test
+	public void cursorIsResumedUntilDeleted() {
+		SCIMSyncCheckpoint checkpoint = SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER);
+		checkpoint.cursorCommitted("page-3");
+
+		assertEquals("page-3", SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER).getCursor());
+
+		checkpoint.delete();
+		SCIMSyncCheckpoint restarted = SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER);
+		assertNull(restarted.getCursor());
+		assertEquals(1, restarted.getStartIndex());
+	}
+
+	@Test
+	public void positionIsNotResumedInAnotherSource() {
+		SCIMSyncCheckpoint seed = SCIMSyncCheckpoint.load(model, "seed:/tmp/users.jsonl:10:1");
+		seed.committed(1, 51);
+
+		SCIMSyncCheckpoint server = SCIMSyncCheckpoint.load(model, SCIMSyncCheckpoint.SERVER);
+		assertEquals(1, server.getStartIndex());
+		assertNotEquals(seed.getGeneration(), server.getGeneration());
+
+		SCIMSyncCheckpoint resumed = SCIMSyncCheckpoint.load(model, "seed:/tmp/users.jsonl:10:1");
+		assertEquals(51, resumed.getStartIndex());
+		assertEquals(seed.getGeneration(), resumed.getGeneration());
+	}
+}
@@ -0,0 +1,206 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class SCIMTokenManagerTest {
+
+	/* Records the scheduled refreshes instead of running them, the test runs them */
+	private static class FakeExecutor extends ScheduledThreadPoolExecutor {
+		final List<Long> delays = new ArrayList<Long>();
+		Runnable next;
+
+		FakeExecutor() {
+			super(1);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			delays.add(unit.toSeconds(delay));
+			next = command;
+			return super.schedule(() -> { }, 1, TimeUnit.DAYS);
+		}
+
+		void runNext() {
+			Runnable command = next;
+			next = null;
+			command.run();
+		}
+	}
+
+	/* Answers the token requests from a queue, a null entry fails the request */
+	private static class FakeTokenManager extends SCIMTokenManager {
+		final Queue<String> responses = new LinkedList<String>();
+		int requests = 0;
+		long now = 1000000;
+
+		FakeTokenManager(ComponentModel model, FakeExecutor executor) {
+			super(sessionFactory(), model, executor);
+		}
+
+		@Override
+		JsonNode requestToken(KeycloakSession session) throws Exception {
+			requests++;
+			String response = responses.remove();
+			if (response == null) {
+				throw new RuntimeException("Token endpoint returned 503");
+			}
+			return JsonSerialization.mapper.readTree(response);
+		}
+
+		@Override
+		long now() {
+			return now;
+		}
+	}
+
+	private static KeycloakSessionFactory sessionFactory() {
+		KeycloakSession session = (KeycloakSession) Proxy.newProxyInstance(KeycloakSession.class.getClassLoader(),
+				new Class<?>[] { KeycloakSession.class }, (proxy, method, args) -> null);
+		return (KeycloakSessionFactory) Proxy.newProxyInstance(KeycloakSessionFactory.class.getClassLoader(),
+				new Class<?>[] { KeycloakSessionFactory.class },
+				(proxy, method, args) -> "create".equals(method.getName()) ? session : null);
+	}
+
+	private static String token(String value, long expiresIn) {
+		return String.format("{\"access_token\": \"%s\", \"token_type\": \"Bearer\", \"expires_in\": %d}",
+				value, expiresIn);
+	}
+
+	private final FakeExecutor executor = new FakeExecutor();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static ComponentModel clientCredentials() {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		model.getConfig().putSingle("authmode", SCIMTokenManager.MODE_CLIENT_CREDENTIALS);
+		model.getConfig().putSingle("tokenurl", "https://idp.example/token");
+		model.getConfig().putSingle("clientid", "client");
+		model.getConfig().putSingle("clientsecret", "secret");
+		return model;
+	}
+
+	private static ComponentModel model(String token) {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		model.getConfig().putSingle("authmode", SCIMTokenManager.MODE_TOKEN);
+		model.getConfig().putSingle("apitoken", token);
+		return model;
+	}
+
+	@Test
+	public void sendsTheConfiguredToken() {
+		SCIMTokenManager tokens = new SCIMTokenManager(null, model("first"), null);
+
+		assertEquals("first", tokens.getToken(null));
+	}
+
+	@Test
+	public void rotatedCredentialsAreDetected() {
+		SCIMTokenManager tokens = new SCIMTokenManager(null, model("first"), null);
+
+		assertTrue(tokens.hasCredentialsOf(model("first")));
+		assertFalse(tokens.hasCredentialsOf(model("second")));
+	}
+
+	@Test
+	public void rotatedLoginPasswordIsDetected() {
+		ComponentModel saved = model("first");
+		saved.getConfig().putSingle("loginpassword", "old");
+		ComponentModel rotated = model("first");
+		rotated.getConfig().putSingle("loginpassword", "new");
+
+		SCIMAdminSession adminSession = new SCIMAdminSession(null, saved, null);
+
+		assertTrue(adminSession.hasCredentialsOf(saved));
+		assertFalse(adminSession.hasCredentialsOf(rotated));
+	}
+
+	@Test
+	public void fetchesAClientCredentialsTokenUntilItExpires() {
+		FakeTokenManager tokens = new FakeTokenManager(clientCredentials(), executor);
+		tokens.responses.add(token("first", 600));
+		tokens.responses.add(token("second", 600));
+
+		assertEquals("first", tokens.getToken(null));
+		tokens.now += 599 * 1000;
+		assertEquals("first", tokens.getToken(null));
+		assertEquals(1, tokens.requests);
+
+		tokens.now += 1000;
+		assertEquals("second", tokens.getToken(null));
+		assertEquals(2, tokens.requests);
+	}
+
+	@Test
+	public void refreshesAFifthOfTheLifetimeButAtLeast30SecondsAhead() {
+		FakeTokenManager tokens = new FakeTokenManager(clientCredentials(), executor);
+		tokens.responses.add(token("first", 1000));
+		tokens.responses.add(token("second", 100));
+
+		tokens.start();
+		executor.runNext();
+		assertEquals("first", tokens.getToken(null));
+		executor.runNext();
+		assertEquals("second", tokens.getToken(null));
+
+		assertEquals(2, tokens.requests);
+		assertEquals(Arrays.asList(0L, 800L, 70L), executor.delays);
+	}
+
+	@Test
+	public void retriesAFailedRefresh() {
+		FakeTokenManager tokens = new FakeTokenManager(clientCredentials(), executor);
+		tokens.responses.add(null);
+		tokens.responses.add(token("first", 1000));
+
+		tokens.start();
+		executor.runNext();
+		executor.runNext();
+
+		assertEquals("first", tokens.getToken(null));
+		assertEquals(Arrays.asList(0L, 10L, 800L), executor.delays);
+	}
+
+	@Test
+	public void rejectedTokenIsFetchedAgain() {
+		FakeTokenManager tokens = new FakeTokenManager(clientCredentials(), executor);
+		tokens.responses.add(token("first", 1000));
+		tokens.responses.add(token("second", 1000));
+
+		assertEquals("first", tokens.getToken(null));
+		/* A 401 with a token already replaced keeps the current one */
+		tokens.invalidate("older");
+		assertEquals("first", tokens.getToken(null));
+
+		tokens.invalidate("first");
+		assertEquals("second", tokens.getToken(null));
+		assertEquals(2, tokens.requests);
+	}
+}
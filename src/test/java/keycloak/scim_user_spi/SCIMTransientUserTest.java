@@ -0,0 +1,55 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMTransientUserTest {
+
+	/* Records the journaled writes instead of opening an outbox */
+	private static class FakeFactory extends SCIMUserStorageProviderFactory {
+		final List<String> written = new ArrayList<String>();
+
+		@Override
+		protected boolean writeBehind(ComponentModel model, SCIMOutbox.Operation operation, String username,
+				String attribute, List<String> values) {
+			written.add(attribute + "=" + values.get(0));
+			return true;
+		}
+	}
+
+	@Test
+	public void setEnabledWritesTheActiveAttributeToACopy() {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		model.getConfig().putSingle("transientusers", Boolean.TRUE.toString());
+		FakeFactory factory = new FakeFactory();
+
+		SCIMUser.Resource cached = new SCIMUser.Resource();
+		cached.setUserName("alice");
+		cached.setActive(true);
+		factory.getUserCache(model).put(cached);
+
+		SCIMTransientUser user = new SCIMTransientUser(null, null, model, new Scim(null, model, factory), factory, cached);
+		user.setEnabled(false);
+
+		assertFalse(user.isEnabled());
+		assertEquals(Collections.singletonList("active=false"), factory.written);
+		assertFalse(factory.getUserCache(model).get("alice").getActive());
+		/* Other sessions may still hold the cached resource */
+		assertTrue(cached.getActive());
+
+		user.setEnabled(false);
+		assertEquals(1, factory.written.size());
+	}
+}
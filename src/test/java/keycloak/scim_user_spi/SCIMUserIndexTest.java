@@ -0,0 +1,45 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMUserIndexTest {
+
+	private static SCIMUser.Resource user(String username, String email) {
+		SCIMUser.Resource resource = new SCIMUser.Resource();
+		resource.setUserName(username);
+		resource.setExternalId("ext-" + username);
+		SCIMUser.Resource.Email value = new SCIMUser.Resource.Email();
+		value.setValue(email);
+		resource.setEmails(Collections.singletonList(value));
+		return resource;
+	}
+
+	@Test
+	public void mixedCaseUsersAreRemovedByTheirKeycloakUsername() {
+		SCIMUserIndex index = new SCIMUserIndex(Collections.<String>emptyList());
+		index.update(user("JDoe", "John.Doe@example.com"));
+
+		assertEquals(Collections.singleton("jdoe"), index.getUsernames(SCIMUserIndex.EMAIL, "john.doe@EXAMPLE.com"));
+
+		index.remove("jdoe");
+		assertTrue(index.getUsernames(SCIMUserIndex.EMAIL, "john.doe@example.com").isEmpty());
+		assertTrue(index.getUsernames(SCIMUserIndex.EXTERNAL_ID, "ext-jdoe").isEmpty());
+	}
+
+	@Test
+	public void updateReplacesThePreviousValues() {
+		SCIMUserIndex index = new SCIMUserIndex(Collections.<String>emptyList());
+		index.update(user("JDoe", "old@example.com"));
+		index.update(user("jdoe", "new@example.com"));
+
+		assertTrue(index.getUsernames(SCIMUserIndex.EMAIL, "old@example.com").isEmpty());
+		assertEquals(Collections.singleton("jdoe"), index.getUsernames(SCIMUserIndex.EMAIL, "new@example.com"));
+	}
+}
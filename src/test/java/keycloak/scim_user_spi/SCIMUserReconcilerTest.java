@@ -0,0 +1,183 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import keycloak.scim_user_spi.schemas.SCIMServiceProviderConfig;
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMUserReconcilerTest {
+
+	/* Serves canned pages and records the applied changes instead of touching Keycloak */
+	private static class FakeReconciler extends SCIMUserReconciler {
+		final List<SCIMUser.Resource> remote;
+		final List<LocalUser> local;
+		final ComponentModel component;
+		final List<String> applied = new ArrayList<String>();
+		boolean remoteServed = false;
+		boolean lookupFails = false;
+
+		FakeReconciler(ComponentModel model, List<String> remote, List<LocalUser> local) {
+			super(null, null, "realm", model);
+			this.component = model;
+			this.remote = new ArrayList<SCIMUser.Resource>();
+			for (String username : remote) {
+				SCIMUser.Resource resource = new SCIMUser.Resource();
+				resource.setUserName(username);
+				this.remote.add(resource);
+			}
+			this.local = new ArrayList<LocalUser>(local);
+		}
+
+		@Override
+		SCIMServiceProviderConfig loadServiceProviderConfig() {
+			return new SCIMServiceProviderConfig();
+		}
+
+		@Override
+		SCIMUser loadRemotePage() {
+			SCIMUser page = new SCIMUser();
+			page.setResources(remoteServed ? Collections.<SCIMUser.Resource>emptyList() : remote);
+			page.setTotalResults(remote.size());
+			remoteServed = true;
+			return page;
+		}
+
+		@Override
+		Set<String> loadRemoteUsernames(List<String> usernames) {
+			if (lookupFails) {
+				throw new IllegalStateException("Batch user lookup failed");
+			}
+			Set<String> found = new HashSet<String>();
+			for (SCIMUser.Resource resource : remote) {
+				if (usernames.contains(resource.getUserName().toLowerCase())) {
+					found.add(resource.getUserName().toLowerCase());
+				}
+			}
+			return found;
+		}
+
+		@Override
+		List<LocalUser> loadLocalPage(int offset) {
+			int pageSize = Integer.parseInt(component.getConfig().getFirst("syncpagesize"));
+			return offset >= local.size() ? Collections.<LocalUser>emptyList() :
+				new ArrayList<LocalUser>(local.subList(offset, Math.min(local.size(), offset + pageSize)));
+		}
+
+		@Override
+		void apply(List<Change> batch, SynchronizationResult batchResult) {
+			for (Change change : batch) {
+				LocalUser user = find(change.username);
+				switch (change.action) {
+				case IMPORT:
+					if (user == null) {
+						applied.add("ADD " + change.username);
+						batchResult.increaseAdded();
+					} else if (user.linked) {
+						applied.add("UPDATE " + change.username);
+						batchResult.increaseUpdated();
+					} else {
+						batchResult.increaseFailed();
+					}
+					break;
+				case REMOVE:
+					applied.add("REMOVE " + change.username);
+					if ("delete".equals(component.getConfig().getFirst("reconcileaction"))) {
+						local.remove(user);
+					}
+					batchResult.increaseRemoved();
+					break;
+				}
+			}
+		}
+
+		private LocalUser find(String username) {
+			for (LocalUser user : local) {
+				if (user.username.equals(username.toLowerCase())) {
+					return user;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static ComponentModel model(int batchSize, int pageSize) {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		model.getConfig().putSingle("syncbatchsize", String.valueOf(batchSize));
+		model.getConfig().putSingle("syncpagesize", String.valueOf(pageSize));
+		return model;
+	}
+
+	private static SCIMUserReconciler.LocalUser linked(String username) {
+		return new SCIMUserReconciler.LocalUser(username, true);
+	}
+
+	@Test
+	public void importsThenRemovesStaleUsers() {
+		FakeReconciler reconciler = new FakeReconciler(model(1, 1000), Arrays.asList("a", "c", "d"),
+				Arrays.asList(linked("b"), linked("c"), linked("e")));
+
+		SynchronizationResult result = reconciler.reconcile();
+
+		assertEquals(Arrays.asList("ADD a", "UPDATE c", "ADD d", "REMOVE b", "REMOVE e"), reconciler.applied);
+		assertEquals(2, result.getAdded());
+		assertEquals(1, result.getUpdated());
+		assertEquals(2, result.getRemoved());
+		assertEquals(0, result.getFailed());
+		assertFalse(reconciler.isAborted());
+	}
+
+	@Test
+	public void orderOfEitherSideDoesNotMatter() {
+		/* A database collation ignoring punctuation sorts ab before a.c, String order is the reverse */
+		FakeReconciler reconciler = new FakeReconciler(model(10, 1000), Arrays.asList("B", "a.c", "ab"),
+				Arrays.asList(linked("a_b"), linked("ab"), linked("a.c"), linked("b")));
+
+		SynchronizationResult result = reconciler.reconcile();
+
+		assertEquals(Arrays.asList("UPDATE B", "UPDATE a.c", "UPDATE ab", "REMOVE a_b"), reconciler.applied);
+		assertEquals(1, result.getRemoved());
+		assertFalse(reconciler.isAborted());
+	}
+
+	@Test
+	public void failedLookupRemovesNobodyAndAborts() {
+		FakeReconciler reconciler = new FakeReconciler(model(1, 1000), Arrays.asList("a"),
+				Arrays.asList(linked("a"), linked("b")));
+		reconciler.lookupFails = true;
+
+		SynchronizationResult result = reconciler.reconcile();
+
+		assertEquals(Collections.singletonList("UPDATE a"), reconciler.applied);
+		assertEquals(0, result.getRemoved());
+		assertTrue(reconciler.isAborted());
+	}
+
+	@Test
+	public void deletedUsersDoNotShiftTheLocalPages() {
+		ComponentModel model = model(1, 2);
+		model.getConfig().putSingle("reconcileaction", "delete");
+		FakeReconciler reconciler = new FakeReconciler(model, Arrays.asList("c"),
+				Arrays.asList(linked("a"), linked("b"), linked("c"), linked("d"), linked("e")));
+
+		SynchronizationResult result = reconciler.reconcile();
+
+		assertEquals(Arrays.asList("UPDATE c", "REMOVE a", "REMOVE b", "REMOVE d", "REMOVE e"), reconciler.applied);
+		assertEquals(4, result.getRemoved());
+		assertEquals(1, reconciler.local.size());
+	}
+}
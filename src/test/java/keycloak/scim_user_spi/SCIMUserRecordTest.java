@@ -0,0 +1,79 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMUserRecordTest {
+
+	private static SCIMUser.Resource.Email email(String value, String type, Boolean primary) {
+		SCIMUser.Resource.Email email = new SCIMUser.Resource.Email();
+		email.setValue(value);
+		email.setType(type);
+		email.setPrimary(primary);
+		return email;
+	}
+
+	@Test
+	public void keepsEveryAttribute() {
+		SCIMUser.Resource user = new SCIMUser.Resource();
+		user.setUserName("alice");
+		user.setId("42");
+		user.setExternalId("ext-42");
+		user.setActive(false);
+		SCIMUser.Resource.Meta meta = new SCIMUser.Resource.Meta();
+		meta.setVersion("W/\"3\"");
+		meta.setLastModified("2026-10-01T10:00:00Z");
+		user.setMeta(meta);
+		user.setEmails(Arrays.asList(email("alice@example.com", "work", true), email("a@home.example", "home", null)));
+		SCIMUser.Resource.Group group = new SCIMUser.Resource.Group();
+		group.setDisplay("admins");
+		group.setValue("g1");
+		user.setGroups(Collections.singletonList(group));
+		user.setAdditionalProperty("urn:ietf:params:scim:schemas:extension:enterprise:2.0:User",
+				Collections.singletonMap("employeeNumber", "701984"));
+
+		SCIMUser.Resource decoded = SCIMUserRecord.decode(ByteBuffer.wrap(SCIMUserRecord.encode(user)));
+
+		assertEquals("alice", decoded.getUserName());
+		assertEquals("42", decoded.getId());
+		assertEquals("ext-42", decoded.getExternalId());
+		assertFalse(decoded.getActive());
+		assertEquals("W/\"3\"", decoded.getMeta().getVersion());
+		assertEquals("2026-10-01T10:00:00Z", decoded.getMeta().getLastModified());
+		assertEquals(2, decoded.getEmails().size());
+		assertEquals("alice@example.com", decoded.getEmails().get(0).getValue());
+		assertTrue(decoded.getEmails().get(0).getPrimary());
+		assertEquals("a@home.example", decoded.getEmails().get(1).getValue());
+		assertEquals("home", decoded.getEmails().get(1).getType());
+		assertNull(decoded.getEmails().get(1).getPrimary());
+		assertEquals("admins", decoded.getGroups().get(0).getDisplay());
+		assertEquals("g1", decoded.getGroups().get(0).getValue());
+		assertEquals("701984", ((Map<?, ?>) decoded.getAdditionalProperties()
+				.get("urn:ietf:params:scim:schemas:extension:enterprise:2.0:User")).get("employeeNumber"));
+	}
+
+	@Test
+	public void keepsMissingValuesMissing() {
+		SCIMUser.Resource user = new SCIMUser.Resource();
+		user.setUserName("bob");
+
+		SCIMUser.Resource decoded = SCIMUserRecord.decode(ByteBuffer.wrap(SCIMUserRecord.encode(user)));
+
+		assertEquals("bob", decoded.getUserName());
+		assertNull(decoded.getActive());
+		assertNull(decoded.getExternalId());
+		assertTrue(decoded.getEmails().isEmpty());
+		assertTrue(decoded.getAdditionalProperties().isEmpty());
+	}
+}
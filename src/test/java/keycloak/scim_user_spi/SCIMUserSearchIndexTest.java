@@ -0,0 +1,72 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMUserSearchIndexTest {
+
+	private static SCIMUser.Resource user(String username) {
+		SCIMUser.Resource resource = new SCIMUser.Resource();
+		resource.setUserName(username);
+		return resource;
+	}
+
+	@Test
+	public void exactSearchKeepsAsterisks() {
+		SCIMUserSearchIndex index = new SCIMUserSearchIndex();
+		index.update(user("a*b"));
+		index.update(user("ab"));
+
+		assertEquals(Collections.singletonList("a*b"), index.search("\"a*b\"", 0, 10));
+		assertEquals(Arrays.asList("a*b", "ab"), index.search("a*", 0, 10));
+	}
+
+	@Test
+	public void prefixAndSubstringSearches() {
+		SCIMUserSearchIndex index = new SCIMUserSearchIndex();
+		index.update(user("alice"));
+		index.update(user("malice"));
+		index.update(user("bob"));
+
+		assertEquals(Collections.singletonList("alice"), index.search("ali", 0, 10));
+		assertEquals(Arrays.asList("alice", "malice"), index.search("*lic*", 0, 10));
+		assertEquals(Arrays.asList("alice", "malice", "bob"), index.search("*", 0, 10));
+		assertEquals(Collections.emptyList(), index.search("lic", 0, 10));
+	}
+
+	@Test
+	public void pagesResumeWhereThePreviousPageStopped() {
+		SCIMUserSearchIndex index = new SCIMUserSearchIndex();
+		for (int i = 0; i < 10; i++) {
+			index.update(user("user" + i));
+		}
+		index.update(user("other"));
+
+		assertEquals(Arrays.asList("user0", "user1", "user2"), index.search("user", 0, 3));
+		assertEquals(Arrays.asList("user3", "user4", "user5"), index.search("user", 3, 3));
+		index.update(user("user10"));
+		assertEquals(Arrays.asList("user6", "user7", "user8"), index.search("user", 6, 3));
+		assertEquals(Arrays.asList("user9", "user10"), index.search("user", 9, 3));
+		assertEquals(Arrays.asList("user4", "user5"), index.search("user", 4, 2));
+	}
+
+	@Test
+	public void removedUsersAreNotFound() {
+		SCIMUserSearchIndex index = new SCIMUserSearchIndex();
+		index.update(user("Alice"));
+		index.update(user("alan"));
+		index.update(user("albert"));
+
+		assertEquals(Arrays.asList("Alice", "alan"), index.search("al", 0, 2));
+		index.remove("alice");
+		assertEquals(2, index.size());
+		assertEquals(Collections.singletonList("albert"), index.search("al", 1, 2));
+		assertEquals(Arrays.asList("alan", "albert"), index.search("al", 0, 10));
+	}
+}
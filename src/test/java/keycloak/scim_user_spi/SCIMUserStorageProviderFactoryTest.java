@@ -0,0 +1,38 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.keycloak.storage.UserStorageProviderModel;
+
+public class SCIMUserStorageProviderFactoryTest {
+
+	private static UserStorageProviderModel model() {
+		UserStorageProviderModel model = new UserStorageProviderModel();
+		model.setId("scim");
+		model.setName("scim");
+		model.getConfig().putSingle("scimurl", "scim.example.com");
+		model.getConfig().putSingle("adaptivesync", "true");
+		return model;
+	}
+
+	@Test
+	public void storingTheSyncWatermarkIsNotAConfigurationChange() {
+		UserStorageProviderModel oldModel = model();
+		UserStorageProviderModel newModel = model();
+		newModel.setLastSync(1700000000);
+
+		assertTrue(SCIMUserStorageProviderFactory.onlyLastSyncChanged(oldModel, newModel));
+	}
+
+	@Test
+	public void savedSettingsAreAConfigurationChange() {
+		UserStorageProviderModel oldModel = model();
+		UserStorageProviderModel newModel = model();
+		newModel.setLastSync(1700000000);
+		newModel.getConfig().putSingle("syncminperiod", "30");
+
+		assertFalse(SCIMUserStorageProviderFactory.onlyLastSyncChanged(oldModel, newModel));
+	}
+}
@@ -0,0 +1,96 @@
+package keycloak.scim_user_spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import keycloak.scim_user_spi.schemas.SCIMUser;
+
+public class SCIMUserStorageProviderTest {
+
+	/* Answers lookups with a canned user instead of calling the server */
+	private static class FakeScim extends Scim {
+		FakeScim(ComponentModel model, SCIMUserStorageProviderFactory factory) {
+			super(null, model, factory);
+		}
+
+		@Override
+		public SCIMUser getUserByUsername(String username, Projection projection) {
+			SCIMUser.Resource resource = new SCIMUser.Resource();
+			resource.setUserName(username);
+			SCIMUser.Resource.Name name = new SCIMUser.Resource.Name();
+			name.setGivenName("Alice");
+			resource.setName(name);
+			SCIMUser users = new SCIMUser();
+			users.setResources(Collections.singletonList(resource));
+			users.setTotalResults(1);
+			return users;
+		}
+	}
+
+	/* Records the materializations instead of joining groups */
+	private static class FakeProvider extends SCIMUserStorageProvider {
+		final List<String> materialized = new ArrayList<String>();
+
+		FakeProvider(ComponentModel model, SCIMUserStorageProviderFactory factory) {
+			super(null, model, new FakeScim(model, factory), factory);
+		}
+
+		@Override
+		protected void materializeGroups(RealmModel realm, UserModel user) {
+			materialized.add(user.getUsername());
+		}
+	}
+
+	/* Local user keeping its fields and attributes in a map */
+	private static UserModel localUser(String username, Map<String, String> attributes) {
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("Username", username);
+		return (UserModel) Proxy.newProxyInstance(UserModel.class.getClassLoader(), new Class<?>[] { UserModel.class },
+				(proxy, method, args) -> {
+					String name = method.getName();
+					if (name.equals("getFirstAttribute")) {
+						return attributes.get(args[0]);
+					} else if (name.startsWith("get")) {
+						return fields.get(name.substring(3));
+					} else if (name.startsWith("set") && args != null && args.length == 1) {
+						fields.put(name.substring(3), args[0]);
+					} else if (method.getReturnType() == boolean.class) {
+						return false;
+					}
+					return null;
+				});
+	}
+
+	@Test
+	public void pendingGroupsAreMaterializedOnFirstGroupAccess() {
+		ComponentModel model = new ComponentModel();
+		model.setId("scim");
+		model.setName("scim");
+		FakeProvider provider = new FakeProvider(model, new SCIMUserStorageProviderFactory());
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put(SCIMUserStorageProvider.GROUPS_PENDING_ATTR, Boolean.TRUE.toString());
+
+		UserModel validated = provider.validate(null, localUser("alice", attributes));
+
+		assertNotNull(validated);
+		assertTrue(validated instanceof SCIMUserModelDelegate);
+		assertEquals(Collections.emptyList(), provider.materialized);
+
+		validated.getGroupsStream();
+		validated.isMemberOf(null);
+		assertEquals(Collections.singletonList("alice"), provider.materialized);
+	}
+}